@@ -69,6 +69,35 @@ public class AbstractBitmapDrawable extends DrawableContainer {
         try {
             synchronized (this) {
                 canvas.drawBitmap(data.mbitmap, xoff, yoff, _defaultPaint);
+            }
+        } catch (Throwable e) {
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+     */
+    @Override
+    public void draw(Canvas canvas) {
+        drawFramebuffer(canvas);
+        drawSoftCursor(canvas);
+    }
+
+    /**
+     * Draws the remote framebuffer only, leaving out the soft cursor. Implementations
+     * should restrict themselves to the clip bounds of the canvas where they can.
+     * @param canvas Canvas in full-frame coordinates
+     */
+    void drawFramebuffer(Canvas canvas) {
+    }
+
+    /**
+     * Draws the soft cursor on top of the framebuffer.
+     * @param canvas Canvas in full-frame coordinates
+     */
+    void drawSoftCursor(Canvas canvas) {
+        try {
+            synchronized (this) {
                 canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
             }
         } catch (Throwable e) {
@@ -0,0 +1,296 @@
+package com.qihua.bVNC;
+
+import com.tigervnc.rdr.OutStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+
+/**
+ * An OutStream drained by a separate writer thread, so that the UI and input threads
+ * never block on a slow uplink.
+ * <p>
+ * Messages are queued in the order they are written. Pointer moves that follow each
+ * other with the same buttons and modifiers are merged into the last position while
+ * they wait. A queue holding only moves is written at most once per tick, anything
+ * else, like a button or key, is written as soon as the writer is free. Moves pile up
+ * and merge while a write is blocked, so a congested link gets the latest position
+ * instead of a backlog.
+ * <p>
+ * Key events are never merged, each press of a key may type a character. Only a
+ * modifier that is released and pressed again while the release still waits stays
+ * held instead, the release and the press are both dropped.
+ */
+class BatchingOutStream extends OutStream implements Runnable {
+    // About the refresh rate of a fast display
+    private static final long TICK_NS = 8000000;
+    // Writing blocks once this much is queued, e.g. for a large clipboard on a slow link
+    private static final int MAX_PENDING = 1024 * 1024;
+    // The position of a PointerEvent follows its type and button mask
+    private static final int POSITION_OFFSET = 2;
+    private static final int POSITION_LENGTH = 4;
+    private static final int POINTER_EVENT_LENGTH = 6;
+    // A KeyEvent is its type, the down flag, two bytes of padding and the keysym
+    private static final int KEY_EVENT = 4;
+    private static final int KEY_EVENT_LENGTH = 8;
+    private static final int KEY_DOWN_OFFSET = 1;
+    private static final int KEYSYM_OFFSET = 4;
+
+    private final OutStream out;
+    private final Thread writer;
+    private final int[] modifierKeysyms;
+
+    private byte[] pending = new byte[4096];
+    private byte[] sending = new byte[4096];
+    private int pendingLen;
+    // Start and length of the queued pointer move that the next move may be merged into,
+    // -1 once anything else has been queued after it
+    private int mergeAt = -1;
+    private int mergeLen;
+    private int mergePointerAt;
+    // Number of key events at the end of the queue, the last of which a modifier press
+    // may cancel if it is the release of that modifier
+    private int tailKeys;
+    // Set when something other than moves is queued
+    private boolean urgent;
+    private long lastWriteNs;
+    private IOException error;
+    private boolean closed;
+
+    /**
+     * @param modifierKeysyms the keysyms of the modifier keys, whose releases may be
+     *                        dropped along with a press of the same key that follows
+     */
+    BatchingOutStream(OutStream out, Collection<Integer> modifierKeysyms) {
+        this.out = out;
+        this.modifierKeysyms = new int[modifierKeysyms.size()];
+        int i = 0;
+        for (int keysym : modifierKeysyms) {
+            this.modifierKeysyms[i++] = keysym;
+        }
+        writer = new Thread(this, "BatchingOutStream");
+        writer.start();
+    }
+
+    /**
+     * Queues the events of one pointer event, i.e. the PointerEvent message at pointerAt
+     * along with the key events for the modifiers around it.
+     *
+     * @param move whether the button mask is the same as with the last pointer event,
+     *             only moves are merged
+     */
+    synchronized void writePointerEvent(byte[] events, int len, int pointerAt, boolean move) throws IOException {
+        if (move && mergeAt >= 0 && mergeLen == len && mergePointerAt == pointerAt
+                && sameButPosition(events, len, pointerAt)) {
+            System.arraycopy(events, pointerAt + POSITION_OFFSET,
+                    pending, mergeAt + pointerAt + POSITION_OFFSET, POSITION_LENGTH);
+            return;
+        }
+
+        queue(events, 0, len, !move);
+        if (move) {
+            mergeAt = pendingLen - len;
+            mergeLen = len;
+            mergePointerAt = pointerAt;
+        }
+        // The modifiers held for the pointer event are released after it
+        tailKeys = (len - pointerAt - POINTER_EVENT_LENGTH) / KEY_EVENT_LENGTH;
+    }
+
+    /**
+     * Queues KeyEvent messages. While the modifiers they start by pressing are the ones
+     * released at the end of the queue, the release and the press are both dropped.
+     * That is the case when keys are typed with a modifier held while a write is
+     * blocked, as RfbProto releases the modifiers after each key and presses them again
+     * with the next one.
+     */
+    synchronized void writeKeyEvents(byte[] events, int len) throws IOException {
+        int off = 0;
+        while (tailKeys > 0 && isModifierPress(events, off, len)
+                && isReleaseOf(pending, pendingLen - KEY_EVENT_LENGTH, events, off)) {
+            pendingLen -= KEY_EVENT_LENGTH;
+            tailKeys--;
+            // The move that could be merged into may have lost its releases
+            mergeAt = -1;
+            off += KEY_EVENT_LENGTH;
+        }
+        if (off == len) {
+            return;
+        }
+
+        int tail = tailKeys;
+        int queuedAt = pendingLen;
+        queue(events, off, len - off, true);
+        // Unless the writer took the queue while this waited for room, the key events
+        // follow those that were at its end
+        if (pendingLen - (len - off) != queuedAt) {
+            tail = 0;
+        }
+        tailKeys = tail + (len - off) / KEY_EVENT_LENGTH;
+    }
+
+    private boolean isModifierPress(byte[] events, int off, int len) {
+        if (off + KEY_EVENT_LENGTH > len || events[off] != KEY_EVENT || events[off + KEY_DOWN_OFFSET] == 0) {
+            return false;
+        }
+        int keysym = readKeysym(events, off);
+        for (int modifier : modifierKeysyms) {
+            if (modifier == keysym) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isReleaseOf(byte[] queued, int at, byte[] events, int off) {
+        return queued[at] == KEY_EVENT && queued[at + KEY_DOWN_OFFSET] == 0
+                && readKeysym(queued, at) == readKeysym(events, off);
+    }
+
+    private static int readKeysym(byte[] b, int off) {
+        int i = off + KEYSYM_OFFSET;
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    private boolean sameButPosition(byte[] events, int len, int pointerAt) {
+        int positionStart = pointerAt + POSITION_OFFSET;
+        int positionEnd = positionStart + POSITION_LENGTH;
+        for (int i = 0; i < len; i++) {
+            if ((i < positionStart || i >= positionEnd) && pending[mergeAt + i] != events[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void queue(byte[] data, int off, int len, boolean urgent) throws IOException {
+        while (pendingLen > 0 && pendingLen + len > MAX_PENDING && error == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (closed) {
+            throw new IOException("BatchingOutStream: closed");
+        }
+
+        if (pendingLen + len > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, pendingLen + len)];
+            System.arraycopy(pending, 0, grown, 0, pendingLen);
+            pending = grown;
+        }
+        System.arraycopy(data, off, pending, pendingLen, len);
+        pendingLen += len;
+        mergeAt = -1;
+        tailKeys = 0;
+        this.urgent |= urgent;
+        notifyAll();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int len;
+                synchronized (this) {
+                    while (pendingLen == 0 && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    if (!urgent) {
+                        long waitNs = lastWriteNs + TICK_NS - System.nanoTime();
+                        if (waitNs > 0) {
+                            // Anything urgent queued meanwhile ends the wait
+                            wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                            continue;
+                        }
+                    }
+
+                    byte[] b = sending;
+                    sending = pending;
+                    pending = b;
+                    len = pendingLen;
+                    pendingLen = 0;
+                    mergeAt = -1;
+                    tailKeys = 0;
+                    urgent = false;
+                    notifyAll();
+                }
+
+                out.writeBytes(sending, 0, len);
+                out.flush();
+                lastWriteNs = System.nanoTime();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public int length() {
+        return 0;
+    }
+
+    @Override
+    protected int overrun(int itemSize, int nItems) {
+        // Never reached, all writes are queued as they come
+        return itemSize * nItems;
+    }
+
+    @Override
+    public synchronized void writeU8(int u) throws IOException {
+        write(u);
+    }
+
+    @Override
+    public synchronized void writeU16(int u) throws IOException {
+        byte[] data = {(byte) (u >> 8), (byte) u};
+        queue(data, 0, 2, true);
+    }
+
+    @Override
+    public synchronized void writeU32(int u) throws IOException {
+        byte[] data = {(byte) (u >> 24), (byte) (u >> 16), (byte) (u >> 8), (byte) u};
+        queue(data, 0, 4, true);
+    }
+
+    @Override
+    public synchronized void writeBytes(byte[] data, int dataPtr, int length) throws IOException {
+        queue(data, dataPtr, length, true);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        writeBytes(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        writeBytes(b, off, len);
+    }
+
+    /**
+     * Writes one byte, like RawOutStream, which this replaces.
+     */
+    @Override
+    public synchronized void write(int b) throws IOException {
+        byte[] data = {(byte) b};
+        queue(data, 0, 1, true);
+    }
+}
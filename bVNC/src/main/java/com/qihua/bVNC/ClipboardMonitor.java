@@ -19,63 +19,141 @@
 
 package com.qihua.bVNC;
 
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
-import android.text.ClipboardManager;
+import android.util.Log;
 
-import java.util.TimerTask;
+import com.undatech.opaque.RfbConnectable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /*
- * This is a TimerTask which checks the clipboard for changes, and if
- * a change is detected, sends the new contents to the VNC server.
+ * Sends the clipboard contents to the server whenever the clipboard changes.
+ * The text is taken and sent on a background thread, and only if it is not what
+ * the server has already, judging by a hash of it. While the connection is not up
+ * yet, the latest text is kept and sent once it is.
  */
 
-public class ClipboardMonitor extends TimerTask {
-    ClipboardManager clipboard;
-    RemoteCanvas vncCanvas;
-    private String TAG = "ClipboardMonitor";
-    private Context context;
-    private String knownClipboardContents;
+public class ClipboardMonitor implements ClipboardManager.OnPrimaryClipChangedListener {
+    private static final String TAG = "ClipboardMonitor";
+    // How long to wait for the connection to come up before trying again
+    private static final long RETRY_DELAY_MS = 500;
+
+    private final Context context;
+    private final RemoteCanvas vncCanvas;
+    private final ClipboardManager clipboard;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    // Hash of the text the server has on its clipboard, guarded by this
+    private long knownHash = hash("");
+    // Text waiting for the connection, only used on the executor thread
+    private String pendingText;
+    private boolean retryScheduled;
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            retryScheduled = false;
+            sendPending();
+        }
+    };
 
     public ClipboardMonitor(Context c, RemoteCanvas vc) {
         context = c;
         vncCanvas = vc;
         clipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
-        knownClipboardContents = new String("");
     }
 
-    /*
-     * Grab the current clipboard contents.
+    /**
+     * Starts listening, and sends what is on the clipboard already once connected.
      */
-    private String getClipboardContents() {
-        try {
-            return clipboard.getText().toString();
-        } catch (NullPointerException e) {
-            return null;
-        } catch (RuntimeException e) {
-            return null;
+    public void start() {
+        if (clipboard == null) {
+            return;
         }
+        clipboard.addPrimaryClipChangedListener(this);
+        onPrimaryClipChanged();
     }
 
-    /*
-     * (non-Javadoc)
-     * @see java.util.TimerTask#run()
+    public void stop() {
+        if (clipboard != null) {
+            clipboard.removePrimaryClipChangedListener(this);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records text that came from the server, so that it is not sent back when it is
+     * put on the clipboard. Must be called before the clipboard is set.
      */
+    public synchronized void remoteTextSet(String text) {
+        knownHash = hash(text);
+    }
+
     @Override
-    public void run() {
-        String currentClipboardContents = getClipboardContents();
-        //Log.d(TAG, "Current clipboard contents: " + currentClipboardContents);
-        //Log.d(TAG, "Previously known clipboard contents: " + knownClipboardContents);
-        if (!vncCanvas.serverJustCutText && currentClipboardContents != null &&
-                !currentClipboardContents.equals(knownClipboardContents)) {
-            if (vncCanvas.rfbconn != null && vncCanvas.rfbconn.isInNormalProtocol()) {
-                vncCanvas.rfbconn.writeClientCutText(currentClipboardContents);
-                knownClipboardContents = new String(currentClipboardContents);
-                //Log.d(TAG, "Wrote: " + knownClipboardContents + " to remote clipboard.");
+    public void onPrimaryClipChanged() {
+        final ClipData clip;
+        try {
+            clip = clipboard.getPrimaryClip();
+        } catch (RuntimeException e) {
+            // Some devices throw when the clipboard can't be read
+            Log.w(TAG, "Could not read the clipboard: " + e.getMessage());
+            return;
+        }
+        if (clip == null || clip.getItemCount() == 0) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // May have to read a content URI, so not done on the UI thread
+                    CharSequence text = clip.getItemAt(0).coerceToText(context);
+                    if (text != null) {
+                        pendingText = text.toString();
+                        sendPending();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    private void sendPending() {
+        if (pendingText == null) {
+            return;
+        }
+        long hash = hash(pendingText);
+        synchronized (this) {
+            if (hash == knownHash) {
+                pendingText = null;
+                return;
             }
-        } else if (vncCanvas.serverJustCutText && currentClipboardContents != null) {
-            knownClipboardContents = new String(currentClipboardContents);
-            vncCanvas.serverJustCutText = false;
-            //Log.d(TAG, "Set knownClipboardContents to equal what server just sent over.");
         }
+
+        RfbConnectable rfbconn = vncCanvas.rfbconn;
+        if (rfbconn == null || !rfbconn.isInNormalProtocol()) {
+            if (!retryScheduled) {
+                retryScheduled = true;
+                executor.schedule(retry, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        rfbconn.writeClientCutText(pendingText);
+        synchronized (this) {
+            knownHash = hash;
+        }
+        pendingText = null;
+    }
+
+    private static long hash(String text) {
+        return (long) text.hashCode() << 32 | text.length();
     }
 }
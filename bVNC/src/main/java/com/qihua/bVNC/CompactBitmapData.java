@@ -193,15 +193,14 @@ class CompactBitmapData extends AbstractBitmapData {
         }
 
         /* (non-Javadoc)
-         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         * @see com.qihua.bVNC.AbstractBitmapDrawable#drawFramebuffer(android.graphics.Canvas)
          */
         @Override
-        public void draw(Canvas canvas) {
+        void drawFramebuffer(Canvas canvas) {
             //android.util.Log.i(TAG, "draw");
             try {
                 synchronized (this) {
                     canvas.drawBitmap(data.mbitmap, 0.0f, 0.0f, _defaultPaint);
-                    canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
                 }
             } catch (Throwable e) {
             }
@@ -195,6 +195,15 @@ public class Constants {
     public static final String threePointerTouchAction = "threePointerTouchAction";
     public static final String touchpadCursorSpeed = "touchpadCursorSpeed";
     public static final String enableDebugInfo = "enableDebugInfo";
+    public static final String pipelinedDecodingTag = "pipelinedDecoding";
+    public static final String parallelDecodingTag = "parallelDecoding";
+    public static final String adaptiveEncodingTag = "adaptiveEncoding";
+    public static final String glFramebufferTag = "glFramebuffer";
+    public static final String partialFramesTag = "partialFrames";
+    public static final String tileHashingTag = "tileHashing";
+    public static final String captureSessionTag = "captureSession";
+    public static final String batchInputTag = "batchInput";
+    public static final String nioTransportTag = "nioTransport";
     public static final String themeModeType = "themeModeType";
     public static final String touchpadFeedback = "touchpadFeedback";
     public static final String touchpadEdgeWheel = "touchpadEdgeWheel";
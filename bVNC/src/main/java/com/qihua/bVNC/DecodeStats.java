@@ -0,0 +1,196 @@
+package com.qihua.bVNC;
+
+import com.undatech.opaque.util.Histogram;
+
+import java.util.Locale;
+
+/**
+ * Breaks down where the time of a VNC session goes, so that a slow session can be put
+ * down to the network, to zlib or to drawing.
+ * <p>
+ * Per encoding it keeps the bytes of each rect, the time spent waiting for them to
+ * arrive, the time spent inflating them and the time spent converting the pixels into
+ * the framebuffer. Per update it keeps the bytes, the wait and the total time, and per
+ * frame the time it took to present. Everything goes into histograms, the overlay of
+ * the debug info shows the medians and the 99th percentiles, and dump() all of it.
+ */
+public class DecodeStats {
+    private static final int[] ENCODINGS = {
+            RfbProto.EncodingRaw,
+            RfbProto.EncodingCopyRect,
+            RfbProto.EncodingRRE,
+            RfbProto.EncodingCoRRE,
+            RfbProto.EncodingHextile,
+            RfbProto.EncodingZlib,
+            RfbProto.EncodingTight,
+            RfbProto.EncodingTightZstd,
+            RfbProto.EncodingZRLE,
+    };
+    private static final String[] NAMES = {
+            "Raw", "CopyRect", "RRE", "CoRRE", "Hextile", "Zlib", "Tight", "TightZstd", "ZRLE",
+    };
+
+    private static final long OVERLAY_REFRESH_MS = 1000;
+
+    private static class EncodingStats {
+        final Histogram bytes = new Histogram();
+        final Histogram wireNs = new Histogram();
+        final Histogram inflateNs = new Histogram();
+        final Histogram convertNs = new Histogram();
+
+        void reset() {
+            bytes.reset();
+            wireNs.reset();
+            inflateNs.reset();
+            convertNs.reset();
+        }
+    }
+
+    private final EncodingStats[] encodings = new EncodingStats[ENCODINGS.length];
+    private final Histogram updateBytes = new Histogram();
+    private final Histogram updateWireNs = new Histogram();
+    private final Histogram updateNs = new Histogram();
+    private final Histogram presentNs = new Histogram();
+
+    private String overlayText;
+    private long overlayMs;
+
+    public DecodeStats() {
+        for (int i = 0; i < encodings.length; i++) {
+            encodings[i] = new EncodingStats();
+        }
+    }
+
+    /**
+     * Whether the Decoder times the decoding of rects of this encoding itself. It does
+     * for those that are read first and decoded afterwards, possibly on another thread.
+     */
+    static boolean isTimedByDecoder(int encoding) {
+        return encoding == RfbProto.EncodingTight || encoding == RfbProto.EncodingTightZstd
+                || encoding == RfbProto.EncodingZRLE || encoding == RfbProto.EncodingZlib;
+    }
+
+    /**
+     * Records a rect read by the protocol thread. Pseudo-encodings are ignored.
+     *
+     * @param wireNs time spent waiting for the data of the rect
+     */
+    void rectReceived(int encoding, long bytes, long wireNs) {
+        EncodingStats stats = forEncoding(encoding);
+        if (stats != null) {
+            stats.bytes.record(bytes);
+            stats.wireNs.record(wireNs);
+        }
+    }
+
+    void rectDecoded(int encoding, long inflateNs, long convertNs) {
+        EncodingStats stats = forEncoding(encoding);
+        if (stats != null) {
+            if (inflateNs > 0) {
+                stats.inflateNs.record(inflateNs);
+            }
+            stats.convertNs.record(convertNs);
+        }
+    }
+
+    /**
+     * Records a whole framebuffer update once all of its rects are in the framebuffer.
+     */
+    void updateReceived(long bytes, long wireNs, long ns) {
+        updateBytes.record(bytes);
+        updateWireNs.record(wireNs);
+        updateNs.record(ns);
+    }
+
+    void framePresented(long ns) {
+        presentNs.record(ns);
+    }
+
+    public void reset() {
+        for (EncodingStats stats : encodings) {
+            stats.reset();
+        }
+        updateBytes.reset();
+        updateWireNs.reset();
+        updateNs.reset();
+        presentNs.reset();
+    }
+
+    /**
+     * The medians and 99th percentiles, for the debug info overlay. Only worked out once
+     * a second, it is asked for with every frame.
+     */
+    synchronized String getOverlayText() {
+        long now = System.currentTimeMillis();
+        if (overlayText == null || now - overlayMs > OVERLAY_REFRESH_MS) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("UPDATE ").append(kb(updateBytes, 50)).append('/').append(kb(updateBytes, 99)).append("KB")
+                    .append(" WIRE ").append(ms(updateWireNs, 50)).append('/').append(ms(updateWireNs, 99))
+                    .append(" ALL ").append(ms(updateNs, 50)).append('/').append(ms(updateNs, 99))
+                    .append(" PRESENT ").append(ms(presentNs, 50)).append('/').append(ms(presentNs, 99));
+            for (int i = 0; i < encodings.length; i++) {
+                EncodingStats stats = encodings[i];
+                if (stats.bytes.getCount() == 0) {
+                    continue;
+                }
+                sb.append('\n').append(NAMES[i].toUpperCase(Locale.US))
+                        .append(' ').append(kb(stats.bytes, 50)).append('/').append(kb(stats.bytes, 99)).append("KB")
+                        .append(" WIRE ").append(ms(stats.wireNs, 50)).append('/').append(ms(stats.wireNs, 99))
+                        .append(" INFL ").append(ms(stats.inflateNs, 50)).append('/').append(ms(stats.inflateNs, 99))
+                        .append(" CONV ").append(ms(stats.convertNs, 50)).append('/').append(ms(stats.convertNs, 99));
+            }
+            overlayText = sb.toString();
+            overlayMs = now;
+        }
+        return overlayText;
+    }
+
+    /**
+     * Everything recorded since the start of the session or the last reset, one line per
+     * histogram with its count, mean, percentiles and maximum. Times are in ms.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder("Decode stats, times in ms\n");
+        appendLine(sb, "update bytes", updateBytes, false);
+        appendLine(sb, "update wire", updateWireNs, true);
+        appendLine(sb, "update total", updateNs, true);
+        appendLine(sb, "present", presentNs, true);
+        for (int i = 0; i < encodings.length; i++) {
+            EncodingStats stats = encodings[i];
+            if (stats.bytes.getCount() == 0) {
+                continue;
+            }
+            appendLine(sb, NAMES[i] + " bytes", stats.bytes, false);
+            appendLine(sb, NAMES[i] + " wire", stats.wireNs, true);
+            appendLine(sb, NAMES[i] + " inflate", stats.inflateNs, true);
+            appendLine(sb, NAMES[i] + " convert", stats.convertNs, true);
+        }
+        return sb.toString();
+    }
+
+    private static void appendLine(StringBuilder sb, String name, Histogram h, boolean ns) {
+        double scale = ns ? 1e6 : 1;
+        sb.append(String.format(Locale.US,
+                "%-18s n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f\n",
+                name, h.getCount(), h.getMean() / scale, h.getPercentile(50) / scale,
+                h.getPercentile(90) / scale, h.getPercentile(99) / scale,
+                h.getPercentile(99.9) / scale, h.getMax() / scale));
+    }
+
+    private static String ms(Histogram h, double percentile) {
+        return String.format(Locale.US, "%.1f", h.getPercentile(percentile) / 1e6);
+    }
+
+    private static String kb(Histogram h, double percentile) {
+        return String.format(Locale.US, "%.1f", h.getPercentile(percentile) / 1024.0);
+    }
+
+    private EncodingStats forEncoding(int encoding) {
+        for (int i = 0; i < ENCODINGS.length; i++) {
+            if (ENCODINGS[i] == encoding) {
+                return encodings[i];
+            }
+        }
+        return null;
+    }
+}
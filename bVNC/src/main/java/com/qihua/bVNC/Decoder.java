@@ -33,10 +33,13 @@ import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.util.Log;
 
-import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
 import com.qihua.bVNC.input.RemotePointer;
+import com.qihua.util.ObjectPool;
+import com.qihua.util.SafeObjectPool;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -51,25 +54,50 @@ public class Decoder {
 
     // Tight decoder's data.
     private Inflater[] tightInflaters = new Inflater[4];
-    private Paint handleTightRectPaint = new Paint();
     private byte[] solidColorBuf = new byte[3];
-    private byte[] tightPalette8 = new byte[2];
-    private int[] tightPalette24 = new int[256];
     private byte[] colorBuf = new byte[768];
-    private byte[] uncompDataBuf = new byte[RfbProto.TightMinToCompress * 3];
-    private byte[] zlibData = new byte[4096];
-    private byte[] inflBuf = new byte[8192];
-    private BitmapFactory.Options bitmapopts = new BitmapFactory.Options();
-    private boolean valid, useGradient;
-    private int c, dx, dy, offset, boffset, idx, stream_id, comp_ctl, numColors, rowSize, dataSize, jpegDataLen;
+    // Decoding may run on several threads, each gets its own inflate buffer and options.
+    private ThreadLocal<GrowableBuffer> inflBuf = new ThreadLocal<GrowableBuffer>() {
+        @Override
+        protected GrowableBuffer initialValue() {
+            return new GrowableBuffer(8192);
+        }
+    };
+    private ThreadLocal<ZstdDecompressCtx> zstdCtx = new ThreadLocal<ZstdDecompressCtx>() {
+        @Override
+        protected ZstdDecompressCtx initialValue() {
+            return new ZstdDecompressCtx();
+        }
+    };
+    private ThreadLocal<BitmapFactory.Options> bitmapopts = new ThreadLocal<BitmapFactory.Options>() {
+        @Override
+        protected BitmapFactory.Options initialValue() {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPurgeable = false;
+            opts.inDither = false;
+            opts.inTempStorage = new byte[32768];
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            opts.inScaled = false;
+            return opts;
+        }
+    };
+    private JpegBitmapPool jpegBitmapPool = new JpegBitmapPool(Bitmap.Config.RGB_565);
+
+    // Tight and ZRLE rects are read into these, then decoded either right away or,
+    // with parallel decoding, by the scheduler.
+    private final SafeObjectPool<EncodedRect> encodedRectPool = new SafeObjectPool<EncodedRect>() {
+        @Override
+        protected EncodedRect itemForPool() {
+            return new EncodedRect();
+        }
+    };
+    // Lanes 0-3 are Tight's zlib streams
+    private static final int ZRLE_LANE = 4;
+    private RectScheduler scheduler;
 
     // ZRLE decoder's data.
-    private byte[] zrleBuf;
-    private int[] zrleTilePixels;
-    private ZlibInStream zrleInStream;
-    private Paint handleZRLERectPaint = new Paint();
-    private int[] handleZRLERectPalette = new int[128];
-    private byte[] readPixelsBuffer = new byte[128];
+    private final int[] zrleTilePixels = new int[64 * 64];
+    private final ZrleDecoder zrleDecoder = new ZrleDecoder();
 
     // Zlib decoder's data.
     private byte[] zlibBuf;
@@ -77,7 +105,6 @@ public class Decoder {
     private byte[] handleZlibRectBuffer = new byte[128];
 
     // RRE decoder's data.
-    private Paint handleRREPaint = new Paint();
     private byte[] bg_buf = new byte[4];
     private byte[] rre_buf = new byte[128];
 
@@ -87,23 +114,50 @@ public class Decoder {
     // Hextile decoder's data.
     // These colors should be kept between handleHextileSubrect() calls.
     private int hextile_bg, hextile_fg;
-    private Paint handleHextileSubrectPaint = new Paint();
     private byte[] backgroundColorBuffer = new byte[4];
 
     private AbstractBitmapData bitmapData;
     private RemoteCanvas vncCanvas;
     private boolean discardCursorShapeUpdates;
+    // Null unless the debug info is shown
+    private final DecodeStats stats;
 
     public Decoder(RemoteCanvas v, boolean discardCursorShapeUpdates) {
         this.discardCursorShapeUpdates = discardCursorShapeUpdates;
-        handleRREPaint.setStyle(Style.FILL);
-        handleTightRectPaint.setStyle(Style.FILL);
-        bitmapopts.inPurgeable = false;
-        bitmapopts.inDither = false;
-        bitmapopts.inTempStorage = new byte[32768];
-        bitmapopts.inPreferredConfig = Bitmap.Config.RGB_565;
-        bitmapopts.inScaled = false;
         vncCanvas = v;
+        stats = v.getDecodeStats();
+
+        if (RectScheduler.isUseful() && Utils.querySharedPreferenceBoolean(v.getContext(),
+                Constants.parallelDecodingTag, false)) {
+            scheduler = new RectScheduler(ZRLE_LANE + 1);
+        }
+    }
+
+    /**
+     * Waits for rects that are still being decoded in parallel. Called before rects which
+     * are decoded on the protocol thread, at the end of each update and before the pixel
+     * format changes.
+     */
+    void flush() throws Exception {
+        if (scheduler != null) {
+            scheduler.barrier();
+        }
+    }
+
+    /**
+     * Starts all zlib streams over, as on a new connection, so that a recorded session
+     * can be decoded again. Rects still being decoded in parallel have to be flushed first.
+     */
+    void resetStreams() {
+        zrleDecoder.reset();
+        for (Inflater inflater : tightInflaters) {
+            if (inflater != null) {
+                inflater.reset();
+            }
+        }
+        if (zlibInflater != null) {
+            zlibInflater.reset();
+        }
     }
 
     void setBitmapData(AbstractBitmapData b) {
@@ -136,6 +190,10 @@ public class Decoder {
         handleRawRect(rfb, x, y, w, h, true);
     }
 
+    /**
+     * @param paint false when the caller updates the bitmap and redraws, as Hextile does
+     *              once for all of its tiles
+     */
     void handleRawRect(RfbProto rfb, int x, int y, int w, int h, boolean paint) throws IOException {
         boolean valid = bitmapData.validDraw(x, y, w, h);
         int[] pixels = bitmapData.bitmapPixels;
@@ -175,13 +233,11 @@ public class Decoder {
             }
         }
 
-        if (!valid)
+        if (!valid || !paint)
             return;
 
         bitmapData.updateBitmap(x, y, w, h);
-
-        if (paint)
-            vncCanvas.reDraw(x, y, w, h);
+        vncCanvas.reDraw(x, y, w, h);
     }
 
     //
@@ -194,6 +250,12 @@ public class Decoder {
         if (!bitmapData.validDraw(x, y, w, h))
             return;
 
+        if (bitmapData instanceof GlBitmapData && ((GlBitmapData) bitmapData)
+                .copyRectOnGpu(rfb.copyRectSrcX, rfb.copyRectSrcY, x, y, w, h)) {
+            vncCanvas.reDrawCopied(x, y, w, h);
+            return;
+        }
+
         bitmapData.copyRect(rfb.copyRectSrcX, rfb.copyRectSrcY, x, y, w, h);
         vncCanvas.reDraw(x, y, w, h);
     }
@@ -202,74 +264,29 @@ public class Decoder {
     // Handle an RRE-encoded rectangle.
     //
     void handleRRERect(RfbProto rfb, int x, int y, int w, int h) throws IOException {
-        boolean valid = bitmapData.validDraw(x, y, w, h);
-        int nSubrects = rfb.is.readInt();
-
-        rfb.readFully(bg_buf, 0, bytesPerPixel);
-        int pixel;
-        if (bytesPerPixel == 1) {
-            pixel = colorPalette[0xFF & bg_buf[0]];
-        } else {
-            pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
-        }
-        handleRREPaint.setColor(pixel);
-        if (valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
-
-        int len = nSubrects * (bytesPerPixel + 8);
-        if (len > rre_buf.length)
-            rre_buf = new byte[len];
-
-        rfb.readFully(rre_buf, 0, len);
-        if (!valid)
-            return;
-
-        int sx, sy, sw, sh;
-
-        int i = 0;
-        for (int j = 0; j < nSubrects; j++) {
-            if (bytesPerPixel == 1) {
-                pixel = colorPalette[0xFF & rre_buf[i++]];
-            } else {
-                pixel = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-            }
-            sx = x + ((rre_buf[i] & 0xff) << 8) + (rre_buf[i + 1] & 0xff);
-            i += 2;
-            sy = y + ((rre_buf[i] & 0xff) << 8) + (rre_buf[i + 1] & 0xff);
-            i += 2;
-            sw = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i + 1] & 0xff);
-            i += 2;
-            sh = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i + 1] & 0xff);
-            i += 2;
-
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
-        }
-
-        vncCanvas.reDraw(x, y, w, h);
+        handleRRERect(rfb, x, y, w, h, false);
     }
 
     //
     // Handle a CoRRE-encoded rectangle.
     //
-
     void handleCoRRERect(RfbProto rfb, int x, int y, int w, int h) throws IOException {
+        handleRRERect(rfb, x, y, w, h, true);
+    }
+
+    /**
+     * RRE and CoRRE only differ in the size of the subrect coordinates, 16 bits for RRE
+     * and 8 bits for CoRRE. All subrects are filled into bitmapPixels before the rect is
+     * shown once.
+     */
+    private void handleRRERect(RfbProto rfb, int x, int y, int w, int h, boolean compact) throws IOException {
         boolean valid = bitmapData.validDraw(x, y, w, h);
         int nSubrects = rfb.is.readInt();
 
         rfb.readFully(bg_buf, 0, bytesPerPixel);
-        int pixel;
-        if (bytesPerPixel == 1) {
-            pixel = colorPalette[0xFF & bg_buf[0]];
-        } else {
-            pixel = Color.rgb(bg_buf[2] & 0xFF, bg_buf[1] & 0xFF, bg_buf[0] & 0xFF);
-        }
-        handleRREPaint.setColor(pixel);
-        if (valid)
-            bitmapData.drawRect(x, y, w, h, handleRREPaint);
+        int pixel = readPixel(bg_buf, 0);
 
-        int len = nSubrects * (bytesPerPixel + 8);
+        int len = nSubrects * (bytesPerPixel + (compact ? 4 : 8));
         if (len > rre_buf.length)
             rre_buf = new byte[len];
 
@@ -277,25 +294,37 @@ public class Decoder {
         if (!valid)
             return;
 
+        int[] pixels = bitmapData.bitmapPixels;
+        int stride = bitmapData.bitmapwidth;
+        fillPixels(pixels, stride, bitmapData.offset(x, y), w, h, pixel);
+
         int sx, sy, sw, sh;
         int i = 0;
-
         for (int j = 0; j < nSubrects; j++) {
-            if (bytesPerPixel == 1) {
-                pixel = colorPalette[0xFF & rre_buf[i++]];
+            pixel = readPixel(rre_buf, i);
+            i += bytesPerPixel;
+            if (compact) {
+                sx = rre_buf[i++] & 0xFF;
+                sy = rre_buf[i++] & 0xFF;
+                sw = rre_buf[i++] & 0xFF;
+                sh = rre_buf[i++] & 0xFF;
             } else {
-                pixel = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
+                sx = ((rre_buf[i] & 0xff) << 8) + (rre_buf[i + 1] & 0xff);
+                sy = ((rre_buf[i + 2] & 0xff) << 8) + (rre_buf[i + 3] & 0xff);
+                sw = ((rre_buf[i + 4] & 0xff) << 8) + (rre_buf[i + 5] & 0xff);
+                sh = ((rre_buf[i + 6] & 0xff) << 8) + (rre_buf[i + 7] & 0xff);
+                i += 8;
             }
-            sx = x + (rre_buf[i++] & 0xFF);
-            sy = y + (rre_buf[i++] & 0xFF);
-            sw = rre_buf[i++] & 0xFF;
-            sh = rre_buf[i++] & 0xFF;
 
-            handleRREPaint.setColor(pixel);
-            bitmapData.drawRect(sx, sy, sw, sh, handleRREPaint);
+            // Subrects must lie within the rect, don't let a broken server write outside of it
+            sw = Math.min(sw, w - sx);
+            sh = Math.min(sh, h - sy);
+            if (sw > 0 && sh > 0) {
+                fillPixels(pixels, stride, bitmapData.offset(x + sx, y + sy), sw, sh, pixel);
+            }
         }
 
+        bitmapData.updateBitmap(x, y, w, h);
         vncCanvas.reDraw(x, y, w, h);
     }
 
@@ -303,6 +332,10 @@ public class Decoder {
     // Handle a Hextile-encoded rectangle.
     //
     void handleHextileRect(RfbProto rfb, int x, int y, int w, int h) throws IOException {
+        // Usually the whole rect is in bitmapPixels and is shown at once. When it is only
+        // partly in the viewport of a LargeBitmapData, the tiles inside it are shown one by one.
+        boolean valid = bitmapData.validDraw(x, y, w, h);
+        boolean anyValid = valid;
 
         hextile_bg = Color.BLACK;
         hextile_fg = Color.BLACK;
@@ -317,10 +350,19 @@ public class Decoder {
                 if (x + w - tx < 16)
                     tw = x + w - tx;
 
-                handleHextileSubrect(rfb, tx, ty, tw, th);
+                boolean tileValid = valid || bitmapData.validDraw(tx, ty, tw, th);
+                handleHextileSubrect(rfb, tx, ty, tw, th, tileValid);
+                if (tileValid && !valid) {
+                    bitmapData.updateBitmap(tx, ty, tw, th);
+                    anyValid = true;
+                }
             }
+        }
 
-            // Finished with a row of tiles, now let's show it.
+        if (valid) {
+            bitmapData.updateBitmap(x, y, w, h);
+        }
+        if (anyValid) {
             vncCanvas.reDraw(x, y, w, h);
         }
     }
@@ -328,7 +370,7 @@ public class Decoder {
     //
     // Handle one tile in the Hextile-encoded data.
     //
-    private void handleHextileSubrect(RfbProto rfb, int tx, int ty, int tw, int th) throws IOException {
+    private void handleHextileSubrect(RfbProto rfb, int tx, int ty, int tw, int th, boolean valid) throws IOException {
 
         int subencoding = rfb.is.readUnsignedByte();
 
@@ -338,32 +380,23 @@ public class Decoder {
             return;
         }
 
-        boolean valid = bitmapData.validDraw(tx, ty, tw, th);
         // Read and draw the background if specified.
         if (bytesPerPixel > backgroundColorBuffer.length) {
             throw new RuntimeException("impossible colordepth");
         }
         if ((subencoding & RfbProto.HextileBackgroundSpecified) != 0) {
             rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-            if (bytesPerPixel == 1) {
-                hextile_bg = colorPalette[0xFF & backgroundColorBuffer[0]];
-            } else {
-                hextile_bg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-            }
+            hextile_bg = readPixel(backgroundColorBuffer, 0);
         }
-        handleHextileSubrectPaint.setColor(hextile_bg);
-        handleHextileSubrectPaint.setStyle(Paint.Style.FILL);
+        int[] pixels = bitmapData.bitmapPixels;
+        int stride = bitmapData.bitmapwidth;
         if (valid)
-            bitmapData.drawRect(tx, ty, tw, th, handleHextileSubrectPaint);
+            fillPixels(pixels, stride, bitmapData.offset(tx, ty), tw, th, hextile_bg);
 
         // Read the foreground color if specified.
         if ((subencoding & RfbProto.HextileForegroundSpecified) != 0) {
             rfb.readFully(backgroundColorBuffer, 0, bytesPerPixel);
-            if (bytesPerPixel == 1) {
-                hextile_fg = colorPalette[0xFF & backgroundColorBuffer[0]];
-            } else {
-                hextile_fg = Color.rgb(backgroundColorBuffer[2] & 0xFF, backgroundColorBuffer[1] & 0xFF, backgroundColorBuffer[0] & 0xFF);
-            }
+            hextile_fg = readPixel(backgroundColorBuffer, 0);
         }
 
         // Done with this tile if there is no sub-rectangles.
@@ -371,63 +404,63 @@ public class Decoder {
             return;
 
         int nSubrects = rfb.is.readUnsignedByte();
+        boolean coloured = (subencoding & RfbProto.HextileSubrectsColoured) != 0;
         int bufsize = nSubrects * 2;
-        if ((subencoding & RfbProto.HextileSubrectsColoured) != 0) {
+        if (coloured) {
             bufsize += nSubrects * bytesPerPixel;
         }
         if (rre_buf.length < bufsize)
             rre_buf = new byte[bufsize];
         rfb.readFully(rre_buf, 0, bufsize);
+        if (!valid)
+            return;
 
         int b1, b2, sx, sy, sw, sh;
         int i = 0;
-        if ((subencoding & RfbProto.HextileSubrectsColoured) == 0) {
-
-            // Sub-rectangles are all of the same color.
-            handleHextileSubrectPaint.setColor(hextile_fg);
-            for (int j = 0; j < nSubrects; j++) {
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                if (valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+        for (int j = 0; j < nSubrects; j++) {
+            if (coloured) {
+                hextile_fg = readPixel(rre_buf, i);
+                i += bytesPerPixel;
             }
-        } else if (bytesPerPixel == 1) {
-
-            // BGR233 (8-bit color) version for colored sub-rectangles.
-            for (int j = 0; j < nSubrects; j++) {
-                hextile_fg = colorPalette[0xFF & rre_buf[i++]];
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
-                if (valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+            b1 = rre_buf[i++] & 0xFF;
+            b2 = rre_buf[i++] & 0xFF;
+            sx = b1 >> 4;
+            sy = b1 & 0xf;
+            // Edge tiles are smaller than 16x16, keep the subrects within them
+            sw = Math.min((b2 >> 4) + 1, tw - sx);
+            sh = Math.min((b2 & 0xf) + 1, th - sy);
+            if (sw > 0 && sh > 0) {
+                fillPixels(pixels, stride, bitmapData.offset(tx + sx, ty + sy), sw, sh, hextile_fg);
             }
+        }
+    }
 
-        } else {
+    /**
+     * Converts a pixel of the wire format at offset in buf, a palette index or 32 bit BGRX.
+     */
+    private int readPixel(byte[] buf, int offset) {
+        if (bytesPerPixel == 1) {
+            return colorPalette[0xFF & buf[offset]];
+        }
+        return Color.rgb(buf[offset + 2] & 0xFF, buf[offset + 1] & 0xFF, buf[offset] & 0xFF);
+    }
 
-            // Full-color (24-bit) version for colored sub-rectangles.
-            for (int j = 0; j < nSubrects; j++) {
-                hextile_fg = Color.rgb(rre_buf[i + 2] & 0xFF, rre_buf[i + 1] & 0xFF, rre_buf[i] & 0xFF);
-                i += 4;
-                b1 = rre_buf[i++] & 0xFF;
-                b2 = rre_buf[i++] & 0xFF;
-                sx = tx + (b1 >> 4);
-                sy = ty + (b1 & 0xf);
-                sw = (b2 >> 4) + 1;
-                sh = (b2 & 0xf) + 1;
-                handleHextileSubrectPaint.setColor(hextile_fg);
-                if (valid)
-                    bitmapData.drawRect(sx, sy, sw, sh, handleHextileSubrectPaint);
+    /**
+     * Fills a rect of bitmapPixels with one color, starting at offset as given by
+     * AbstractBitmapData.offset. Most subrects of these encodings are a few pixels wide,
+     * those are filled with a plain loop rather than Arrays.fill.
+     */
+    private static void fillPixels(int[] pixels, int stride, int offset, int w, int h, int color) {
+        if (w > 10) {
+            for (int j = 0; j < h; j++, offset += stride) {
+                Arrays.fill(pixels, offset, offset + w, color);
+            }
+        } else {
+            for (int j = 0; j < h; j++, offset += stride - w) {
+                for (int k = 0; k < w; k++, offset++) {
+                    pixels[offset] = color;
+                }
             }
-
         }
     }
 
@@ -435,23 +468,61 @@ public class Decoder {
     // Handle a ZRLE-encoded rectangle.
     //
     void handleZRLERect(RfbProto rfb, int x, int y, int w, int h) throws Exception {
-
-        if (zrleInStream == null)
-            zrleInStream = new ZlibInStream();
+        final ObjectPool.Entry<EncodedRect> entry = encodedRectPool.reserve();
+        final EncodedRect r = entry.get();
+        r.set(x, y, w, h, bitmapData.validDraw(x, y, w, h));
 
         int nBytes = rfb.is.readInt();
         if (nBytes > 64 * 1024 * 1024)
             throw new Exception("ZRLE decoder: illegal compressed data size");
 
-        if (zrleBuf == null || zrleBuf.length < nBytes) {
-            zrleBuf = new byte[nBytes + 4096];
+        r.readData(rfb, nBytes);
+
+        if (scheduler == null) {
+            try {
+                decodeZRLERect(r);
+            } finally {
+                encodedRectPool.release(entry);
+            }
+            return;
         }
 
-        rfb.readFully(zrleBuf, 0, nBytes);
+        // All ZRLE rects share one zlib stream
+        scheduler.submit(ZRLE_LANE, x, y, w, h, () -> {
+            try {
+                decodeZRLERect(r);
+            } finally {
+                encodedRectPool.release(entry);
+            }
+        });
+    }
 
-        zrleInStream.setUnderlying(new MemInStream(zrleBuf, 0, nBytes), nBytes);
+    private void decodeZRLERect(EncodedRect r) throws Exception {
+        if (stats == null) {
+            decodeZRLEData(r);
+            return;
+        }
 
-        boolean valid = bitmapData.validDraw(x, y, w, h);
+        long startNs = System.nanoTime();
+        decodeZRLEData(r);
+        stats.rectDecoded(RfbProto.EncodingZRLE, r.inflateNs, System.nanoTime() - startNs - r.inflateNs);
+    }
+
+    private void decodeZRLEData(EncodedRect r) throws Exception {
+        int x = r.x, y = r.y, w = r.w, h = r.h;
+        boolean valid = r.valid;
+
+        zrleDecoder.setPixelFormat(bytesPerPixel, colorPalette);
+        long inflateStartNs = stats != null ? System.nanoTime() : 0;
+        zrleDecoder.inflate(r.data, 0, r.dataLen);
+        if (stats != null) {
+            r.inflateNs = System.nanoTime() - inflateStartNs;
+        }
+
+        // Tiles are decoded straight into the framebuffer rows. Those of a rect that
+        // can't be drawn still have to be read, they go to a scratch tile.
+        int[] pixels = bitmapData.bitmapPixels;
+        int stride = bitmapData.bitmapwidth;
 
         for (int ty = y; ty < y + h; ty += 64) {
 
@@ -461,41 +532,26 @@ public class Decoder {
 
                 int tw = Math.min(x + w - tx, 64);
 
-                int mode = zrleInStream.readU8();
-                boolean rle = (mode & 128) != 0;
-                int palSize = mode & 127;
-
-                readZrlePalette(handleZRLERectPalette, palSize);
-
-                if (palSize == 1) {
-                    int pix = handleZRLERectPalette[0];
-                    int c = (bytesPerPixel == 1) ? colorPalette[0xFF & pix] : (0xFF000000 | pix);
-                    handleZRLERectPaint.setColor(c);
-                    handleZRLERectPaint.setStyle(Paint.Style.FILL);
-                    if (valid)
-                        bitmapData.drawRect(tx, ty, tw, th, handleZRLERectPaint);
+                if (!valid) {
+                    zrleDecoder.decodeTile(tw, th, zrleTilePixels, 0, tw);
                     continue;
                 }
 
-                if (!rle) {
-                    if (palSize == 0) {
-                        readZrleRawPixels(tw, th);
-                    } else {
-                        readZrlePackedPixels(tw, th, handleZRLERectPalette, palSize);
-                    }
-                } else {
-                    if (palSize == 0) {
-                        readZrlePlainRLEPixels(tw, th);
-                    } else {
-                        readZrlePackedRLEPixels(tw, th, handleZRLERectPalette);
+                int offset = bitmapData.offset(tx, ty);
+                if (!zrleDecoder.decodeTile(tw, th, pixels, offset, stride)) {
+                    int color = zrleDecoder.getSolidColor();
+                    for (int j = 0; j < th; j++, offset += stride) {
+                        Arrays.fill(pixels, offset, offset + tw, color);
                     }
                 }
-                if (valid)
-                    handleUpdatedZrleTile(tx, ty, tw, th);
             }
         }
 
-        zrleInStream.reset();
+        if (valid) {
+            synchronized (bitmapData) {
+                bitmapData.updateBitmap(x, y, w, h);
+            }
+        }
 
         vncCanvas.reDraw(x, y, w, h);
     }
@@ -512,6 +568,8 @@ public class Decoder {
         }
 
         rfb.readFully(zlibBuf, 0, nBytes);
+        long startNs = stats != null ? System.nanoTime() : 0;
+        long inflateNs = 0;
 
         if (zlibInflater == null) {
             zlibInflater = new Inflater();
@@ -527,7 +585,11 @@ public class Decoder {
             }
             int i, offset;
             for (int dy = y; dy < y + h; dy++) {
+                long inflateStartNs = stats != null ? System.nanoTime() : 0;
                 zlibInflater.inflate(handleZlibRectBuffer, 0, w);
+                if (stats != null) {
+                    inflateNs += System.nanoTime() - inflateStartNs;
+                }
                 if (!valid)
                     continue;
                 offset = bitmapData.offset(x, dy);
@@ -543,7 +605,11 @@ public class Decoder {
             }
             int i, offset;
             for (int dy = y; dy < y + h; dy++) {
+                long inflateStartNs = stats != null ? System.nanoTime() : 0;
                 zlibInflater.inflate(handleZlibRectBuffer, 0, l);
+                if (stats != null) {
+                    inflateNs += System.nanoTime() - inflateStartNs;
+                }
                 if (!valid)
                     continue;
                 offset = bitmapData.offset(x, dy);
@@ -553,230 +619,96 @@ public class Decoder {
                 }
             }
         }
-        if (!valid)
-            return;
-        bitmapData.updateBitmap(x, y, w, h);
-
-        vncCanvas.reDraw(x, y, w, h);
-    }
-
-    private int readPixel(InStream is) throws Exception {
-        int pix;
-        if (bytesPerPixel == 1) {
-            pix = is.readU8();
-        } else {
-            int p1 = is.readU8();
-            int p2 = is.readU8();
-            int p3 = is.readU8();
-            pix = (p3 & 0xFF) << 16 | (p2 & 0xFF) << 8 | (p1 & 0xFF);
+        if (valid) {
+            bitmapData.updateBitmap(x, y, w, h);
+            vncCanvas.reDraw(x, y, w, h);
         }
-        return pix;
-    }
-
 
-    private void readPixels(InStream is, int[] dst, int count) throws Exception {
-        if (bytesPerPixel == 1) {
-            if (count > readPixelsBuffer.length) {
-                readPixelsBuffer = new byte[count];
-            }
-            is.readBytes(readPixelsBuffer, 0, count);
-            for (int i = 0; i < count; i++) {
-                dst[i] = (int) readPixelsBuffer[i] & 0xFF;
-            }
-        } else {
-            final int l = count * 3;
-            if (l > readPixelsBuffer.length) {
-                readPixelsBuffer = new byte[l];
-            }
-            is.readBytes(readPixelsBuffer, 0, l);
-            for (int i = 0; i < count; i++) {
-                final int idx = i * 3;
-                dst[i] = ((readPixelsBuffer[idx + 2] & 0xFF) << 16 | (readPixelsBuffer[idx + 1] & 0xFF) << 8 | (readPixelsBuffer[idx] & 0xFF));
-            }
+        if (stats != null) {
+            stats.rectDecoded(RfbProto.EncodingZlib, inflateNs, System.nanoTime() - startNs - inflateNs);
         }
     }
 
-    private void readZrlePalette(int[] palette, int palSize) throws Exception {
-        readPixels(zrleInStream, palette, palSize);
-    }
-
-    private void readZrleRawPixels(int tw, int th) throws Exception {
-        int len = tw * th;
-        if (zrleTilePixels == null || len > zrleTilePixels.length)
-            zrleTilePixels = new int[len];
-        readPixels(zrleInStream, zrleTilePixels, tw * th); // /
-    }
-
-    private void readZrlePackedPixels(int tw, int th, int[] palette, int palSize) throws Exception {
-
-        int bppp = ((palSize > 16) ? 8 : ((palSize > 4) ? 4 : ((palSize > 2) ? 2 : 1)));
-        int ptr = 0;
-        int len = tw * th;
-        if (zrleTilePixels == null || len > zrleTilePixels.length)
-            zrleTilePixels = new int[len];
-
-        for (int i = 0; i < th; i++) {
-            int eol = ptr + tw;
-            int b = 0;
-            int nbits = 0;
-
-            while (ptr < eol) {
-                if (nbits == 0) {
-                    b = zrleInStream.readU8();
-                    nbits = 8;
-                }
-                nbits -= bppp;
-                int index = (b >> nbits) & ((1 << bppp) - 1) & 127;
-                if (bytesPerPixel == 1) {
-                    if (index >= colorPalette.length)
-                        Log.e(TAG, "zrlePlainRLEPixels palette lookup out of bounds " + index + " (0x" + Integer.toHexString(index) + ")");
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & palette[index]];
-                } else {
-                    zrleTilePixels[ptr++] = palette[index];
+    //
+    // Handle a Tight-encoded rectangle.
+    //
+    void handleTightRect(RfbProto rfb, int x, int y, int w, int h, boolean zstd) throws Exception {
+        final ObjectPool.Entry<EncodedRect> entry = encodedRectPool.reserve();
+        final EncodedRect r = entry.get();
+        readTightRect(rfb, r, x, y, w, h, zstd);
+
+        if (scheduler == null) {
+            for (int i = 0; i < 4; i++) {
+                if ((r.resetStreams & (1 << i)) != 0) {
+                    tightInflaters[i] = null;
                 }
             }
-        }
-    }
-
-    private void readZrlePlainRLEPixels(int tw, int th) throws Exception {
-        int ptr = 0;
-        int end = ptr + tw * th;
-        if (zrleTilePixels == null || end > zrleTilePixels.length)
-            zrleTilePixels = new int[end];
-        while (ptr < end) {
-            int pix = readPixel(zrleInStream);
-            int len = 1;
-            int b;
-            do {
-                b = zrleInStream.readU8();
-                len += b;
-            } while (b == 255);
-
-            if (!(len <= end - ptr))
-                throw new Exception("ZRLE decoder: assertion failed" + " (len <= end-ptr)");
-
-            if (bytesPerPixel == 1) {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-            } else {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = pix;
+            try {
+                decodeTightRect(r);
+            } finally {
+                encodedRectPool.release(entry);
             }
+            return;
         }
-    }
 
-    private void readZrlePackedRLEPixels(int tw, int th, int[] palette) throws Exception {
-
-        int ptr = 0;
-        int end = ptr + tw * th;
-        if (zrleTilePixels == null || end > zrleTilePixels.length)
-            zrleTilePixels = new int[end];
-        while (ptr < end) {
-            int index = zrleInStream.readU8();
-            int len = 1;
-            if ((index & 128) != 0) {
-                int b;
-                do {
-                    b = zrleInStream.readU8();
-                    len += b;
-                } while (b == 255);
-
-                if (!(len <= end - ptr))
-                    throw new Exception("ZRLE decoder: assertion failed" + " (len <= end - ptr)");
-            }
-
-            index &= 127;
-            int pix = palette[index];
-
-            if (bytesPerPixel == 1) {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = colorPalette[0xFF & pix];
-            } else {
-                while (len-- > 0)
-                    zrleTilePixels[ptr++] = pix;
+        // Stream resets and inflating have to happen in stream order
+        for (int i = 0; i < 4; i++) {
+            if ((r.resetStreams & (1 << i)) != 0) {
+                final int streamId = i;
+                scheduler.submit(streamId, 0, 0, 0, 0, () -> tightInflaters[streamId] = null);
             }
         }
-    }
-
-    //
-    // Copy pixels from zrleTilePixels8 or zrleTilePixels24, then update.
-    //
 
-    private void handleUpdatedZrleTile(int x, int y, int w, int h) {
-        int offsetSrc = 0;
-        int[] destPixels = bitmapData.bitmapPixels;
-        for (int j = 0; j < h; j++) {
-            System.arraycopy(zrleTilePixels, offsetSrc, destPixels, bitmapData.offset(x, y + j), w);
-            offsetSrc += w;
+        int lane = RectScheduler.NO_LANE;
+        if (r.subencoding != RfbProto.TightFill && r.subencoding != RfbProto.TightJpeg
+                && !r.zstd && r.dataSize >= RfbProto.TightMinToCompress) {
+            lane = r.streamId;
         }
-
-        bitmapData.updateBitmap(x, y, w, h);
+        scheduler.submit(lane, x, y, w, h, () -> {
+            try {
+                decodeTightRect(r);
+            } finally {
+                encodedRectPool.release(entry);
+            }
+        });
     }
 
-
     //
-    // Handle a Tight-encoded rectangle.
+    // Read the header and payload of a Tight-encoded rectangle into r.
     //
-    void handleTightRect(RfbProto rfb, int x, int y, int w, int h, boolean zstd) throws Exception {
+    private void readTightRect(RfbProto rfb, EncodedRect r, int x, int y, int w, int h, boolean zstd) throws Exception {
+        r.set(x, y, w, h, bitmapData.validDraw(x, y, w, h));
+        r.zstd = zstd;
+        int comp_ctl = rfb.is.readUnsignedByte();
 
-        int[] pixels = bitmapData.bitmapPixels;
-        valid = bitmapData.validDraw(x, y, w, h);
-        comp_ctl = rfb.is.readUnsignedByte();
-
-        rowSize = w;
-        boffset = 0;
-        numColors = 0;
-        useGradient = false;
-
-        // Flush zlib streams if we are told by the server to do so.
-        for (stream_id = 0; stream_id < 4; stream_id++) {
-            if ((comp_ctl & 1) != 0) {
-                tightInflaters[stream_id] = null;
-            }
-            comp_ctl >>= 1;
-        }
+        r.rowSize = w;
+        r.numColors = 0;
+        r.useGradient = false;
+        r.resetStreams = comp_ctl & 0x0F;
+        comp_ctl >>= 4;
 
         // Check correctness of sub-encoding value.
         if (comp_ctl > RfbProto.TightMaxSubencoding) {
             throw new Exception("Incorrect tight subencoding: " + comp_ctl);
         }
+        r.subencoding = comp_ctl;
 
         // Handle solid-color rectangles.
         if (comp_ctl == RfbProto.TightFill) {
             if (bytesPerPixel == 1) {
-                idx = rfb.is.readUnsignedByte();
-                handleTightRectPaint.setColor(colorPalette[0xFF & idx]);
+                int idx = rfb.is.readUnsignedByte();
+                r.fillColor = colorPalette[0xFF & idx];
             } else {
                 rfb.readFully(solidColorBuf, 0, 3);
-                handleTightRectPaint.setColor(0xFF000000 | (solidColorBuf[0] & 0xFF) << 16
-                        | (solidColorBuf[1] & 0xFF) << 8 | (solidColorBuf[2] & 0xFF));
-            }
-            if (valid) {
-                bitmapData.drawRect(x, y, w, h, handleTightRectPaint);
-                vncCanvas.reDraw(x, y, w, h);
+                r.fillColor = 0xFF000000 | (solidColorBuf[0] & 0xFF) << 16
+                        | (solidColorBuf[1] & 0xFF) << 8 | (solidColorBuf[2] & 0xFF);
             }
             return;
         }
 
         if (comp_ctl == RfbProto.TightJpeg) {
             // Read JPEG data.
-            jpegDataLen = rfb.readCompactLen();
-            if (jpegDataLen > inflBuf.length) {
-                inflBuf = new byte[2 * jpegDataLen];
-            }
-            rfb.readFully(inflBuf, 0, jpegDataLen);
-            if (!valid)
-                return;
-
-            // Decode JPEG data
-            Bitmap tightBitmap = BitmapFactory.decodeByteArray(inflBuf, 0, jpegDataLen, bitmapopts);
-
-            // Copy decoded data into bitmapData and recycle bitmap.
-            //tightBitmap.getPixels(pixels, bitmapData.offset(x, y), bitmapData.bitmapwidth, 0, 0, w, h);
-            bitmapData.updateBitmap(tightBitmap, x, y, w, h);
-            vncCanvas.reDraw(x, y, w, h);
-            // To avoid running out of memory, recycle bitmap immediately.
-            tightBitmap.recycle();
+            r.readData(rfb, rfb.readCompactLen());
             return;
         }
 
@@ -785,186 +717,186 @@ public class Decoder {
             int filter_id = rfb.is.readUnsignedByte();
 
             if (filter_id == RfbProto.TightFilterPalette) {
-                numColors = rfb.is.readUnsignedByte() + 1;
+                r.numColors = rfb.is.readUnsignedByte() + 1;
 
                 if (bytesPerPixel == 1) {
-                    if (numColors != 2) {
-                        throw new Exception("Incorrect tight palette size: " + numColors);
+                    if (r.numColors != 2) {
+                        throw new Exception("Incorrect tight palette size: " + r.numColors);
                     }
-                    rfb.readFully(tightPalette8, 0, 2);
+                    rfb.readFully(r.palette8, 0, 2);
 
                 } else {
-                    rfb.readFully(colorBuf, 0, numColors * 3);
-                    for (c = 0; c < numColors; c++) {
-                        idx = c * 3;
-                        tightPalette24[c] = ((colorBuf[idx] & 0xFF) << 16 |
+                    rfb.readFully(colorBuf, 0, r.numColors * 3);
+                    for (int c = 0; c < r.numColors; c++) {
+                        int idx = c * 3;
+                        r.palette24[c] = ((colorBuf[idx] & 0xFF) << 16 |
                                 (colorBuf[idx + 1] & 0xFF) << 8 |
                                 (colorBuf[idx + 2] & 0xFF));
                     }
                 }
 
-                if (numColors == 2)
-                    rowSize = (w + 7) / 8;
+                if (r.numColors == 2)
+                    r.rowSize = (w + 7) / 8;
 
             } else if (filter_id == RfbProto.TightFilterGradient) {
-                useGradient = true;
+                r.useGradient = true;
             } else if (filter_id != RfbProto.TightFilterCopy) {
                 throw new Exception("Incorrect tight filter id: " + filter_id);
             }
         }
 
-        if (numColors == 0 && bytesPerPixel == 4)
-            rowSize *= 3;
+        if (r.numColors == 0 && bytesPerPixel == 4)
+            r.rowSize *= 3;
 
         // Read, optionally uncompress and decode data.
-        dataSize = h * rowSize;
+        r.dataSize = h * r.rowSize;
+        r.streamId = comp_ctl & 0x03;
 
-        if (dataSize < RfbProto.TightMinToCompress) {
+        if (r.dataSize < RfbProto.TightMinToCompress) {
             // Data size is small - not compressed with zlib.
-            rfb.readFully(uncompDataBuf, 0, dataSize);
-            if (!valid)
-                return;
+            r.readData(rfb, r.dataSize);
+        } else {
+            // Data was compressed with zlib or zstd.
+            r.readData(rfb, rfb.readCompactLen());
+        }
+    }
 
-            if (numColors != 0) {
-                // Indexed colors.
-                if (numColors == 2) {
-                    // Two colors.
-                    if (bytesPerPixel == 1) {
-                        decodeMonoData(x, y, w, h, uncompDataBuf, tightPalette8);
-                    } else {
-                        decodeMonoData(x, y, w, h, uncompDataBuf, tightPalette24);
-                    }
-                } else {
-                    // 3..255 colors (assuming bytesPerPixel == 4).
-                    boffset = 0;
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = x; dx < x + w; dx++) {
-                            pixels[offset++] = tightPalette24[uncompDataBuf[boffset++] & 0xFF];
-                        }
-                    }
-                }
-            } else if (useGradient) {
-                // "Gradient"-processed data
-                decodeGradientData(x, y, w, h, uncompDataBuf);
-            } else {
-                boffset = 0;
-                // Raw true-color data.
-                if (bytesPerPixel == 1) {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            pixels[offset++] = colorPalette[0xFF & uncompDataBuf[boffset++]];
-                        }
-                    }
-                } else {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            idx = boffset * 3;
-                            boffset++;
-                            pixels[offset++] = (uncompDataBuf[idx] & 0xFF) << 16 |
-                                    (uncompDataBuf[idx + 1] & 0xFF) << 8 |
-                                    (uncompDataBuf[idx + 2] & 0xFF);
-                        }
-                    }
-                }
-            }
+    //
+    // Decode a Tight-encoded rectangle read by readTightRect() into the framebuffer.
+    //
+    private void decodeTightRect(EncodedRect r) throws Exception {
+        if (stats == null) {
+            decodeTightData(r);
+            return;
+        }
 
-        } else {
-            // Data was compressed with zlib or zstd
-            if (zstd) {
-                // Data was compressed with zstd.
-                int zlibDataLen = rfb.readCompactLen();
-                zlibData = new byte[zlibDataLen];
-                rfb.readFully(zlibData);
-
-                inflBuf = new byte[dataSize];
-
-                try {
-                    Zstd.decompress(inflBuf, zlibData);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return;
-                }
-            } else {
-                // Data was compressed with zlib.
-                int zlibDataLen = rfb.readCompactLen();
-                if (zlibDataLen > zlibData.length) {
-                    zlibData = new byte[zlibDataLen * 2];
-                }
-                rfb.readFully(zlibData, 0, zlibDataLen);
+        long startNs = System.nanoTime();
+        decodeTightData(r);
+        stats.rectDecoded(r.zstd ? RfbProto.EncodingTightZstd : RfbProto.EncodingTight,
+                r.inflateNs, System.nanoTime() - startNs - r.inflateNs);
+    }
+
+    private void decodeTightData(EncodedRect r) throws Exception {
+        int x = r.x, y = r.y, w = r.w, h = r.h;
 
-                stream_id = comp_ctl & 0x03;
-                if (tightInflaters[stream_id] == null) {
-                    tightInflaters[stream_id] = new Inflater();
+        if (r.subencoding == RfbProto.TightFill) {
+            if (r.valid) {
+                r.paint.setColor(r.fillColor);
+                synchronized (bitmapData) {
+                    bitmapData.drawRect(x, y, w, h, r.paint);
                 }
+                vncCanvas.reDraw(x, y, w, h);
+            }
+            return;
+        }
 
-                Inflater myInflater = tightInflaters[stream_id];
-                myInflater.setInput(zlibData, 0, zlibDataLen);
+        if (r.subencoding == RfbProto.TightJpeg) {
+            if (!r.valid)
+                return;
 
-                if (dataSize > inflBuf.length) {
-                    inflBuf = new byte[dataSize * 2];
-                }
+            // Decode JPEG data
+            Bitmap tightBitmap = jpegBitmapPool.decode(r.data, r.dataLen, w, h, bitmapopts.get());
+            if (tightBitmap == null) {
+                Log.e(TAG, "Could not decode Tight JPEG rect");
+                return;
+            }
 
-                try {
-                    myInflater.inflate(inflBuf, 0, dataSize);
-                } catch (DataFormatException e) {
-                    e.printStackTrace();
-                }
+            // Copy decoded data into bitmapData and hand the bitmap back for the next rect.
+            //tightBitmap.getPixels(pixels, bitmapData.offset(x, y), bitmapData.bitmapwidth, 0, 0, w, h);
+            synchronized (bitmapData) {
+                bitmapData.updateBitmap(tightBitmap, x, y, w, h);
             }
+            vncCanvas.getFpsCounter().countCopiedBytes(w * h * 4);
+            vncCanvas.reDraw(x, y, w, h);
+            jpegBitmapPool.release(tightBitmap);
+            return;
+        }
 
-            if (!valid)
+        byte[] data;
+        long inflateStartNs = stats != null ? System.nanoTime() : 0;
+        if (r.dataSize < RfbProto.TightMinToCompress) {
+            data = r.data;
+        } else if (r.zstd) {
+            data = inflBuf.get().ensure(r.dataSize);
+            try {
+                zstdCtx.get().decompressByteArray(data, 0, r.dataSize, r.data, 0, r.dataLen);
+            } catch (Exception e) {
+                e.printStackTrace();
                 return;
+            }
+        } else {
+            if (tightInflaters[r.streamId] == null) {
+                tightInflaters[r.streamId] = new Inflater();
+            }
 
-            if (numColors != 0) {
-                // Indexed colors.
-                if (numColors == 2) {
-                    // Two colors.
-                    if (bytesPerPixel == 1) {
-                        decodeMonoData(x, y, w, h, inflBuf, tightPalette8);
-                    } else {
-                        decodeMonoData(x, y, w, h, inflBuf, tightPalette24);
-                    }
+            Inflater myInflater = tightInflaters[r.streamId];
+            myInflater.setInput(r.data, 0, r.dataLen);
+
+            data = inflBuf.get().ensure(r.dataSize);
+            try {
+                myInflater.inflate(data, 0, r.dataSize);
+            } catch (DataFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        if (stats != null && data != r.data) {
+            r.inflateNs = System.nanoTime() - inflateStartNs;
+        }
+
+        if (!r.valid)
+            return;
+
+        int[] pixels = bitmapData.bitmapPixels;
+        int offset, boffset, idx;
+        if (r.numColors != 0) {
+            // Indexed colors.
+            if (r.numColors == 2) {
+                // Two colors.
+                if (bytesPerPixel == 1) {
+                    decodeMonoData(x, y, w, h, data, r.palette8);
                 } else {
-                    // More than two colors (assuming bytesPerPixel == 4).
-                    boffset = 0;
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = x; dx < x + w; dx++) {
-                            pixels[offset++] = tightPalette24[inflBuf[boffset++] & 0xFF];
-                        }
-                    }
+                    decodeMonoData(x, y, w, h, data, r.palette24);
                 }
-            } else if (useGradient) {
-                // Compressed "Gradient"-filtered data (assuming bytesPerPixel == 4).
-                decodeGradientData(x, y, w, h, inflBuf);
             } else {
+                // More than two colors (assuming bytesPerPixel == 4).
                 boffset = 0;
-                // Compressed true-color data.
-                if (bytesPerPixel == 1) {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            pixels[offset++] = colorPalette[0xFF & inflBuf[boffset++]];
-                        }
+                for (int dy = y; dy < y + h; dy++) {
+                    offset = bitmapData.offset(x, dy);
+                    for (int dx = x; dx < x + w; dx++) {
+                        pixels[offset++] = r.palette24[data[boffset++] & 0xFF];
                     }
-                } else {
-                    for (dy = y; dy < y + h; dy++) {
-                        offset = bitmapData.offset(x, dy);
-                        for (dx = 0; dx < w; dx++) {
-                            idx = boffset * 3;
-                            boffset++;
-                            pixels[offset++] = (inflBuf[idx] & 0xFF) << 16 |
-                                    (inflBuf[idx + 1] & 0xFF) << 8 |
-                                    (inflBuf[idx + 2] & 0xFF);
-                        }
+                }
+            }
+        } else if (r.useGradient) {
+            // "Gradient"-processed data (assuming bytesPerPixel == 4).
+            decodeGradientData(x, y, w, h, data);
+        } else {
+            boffset = 0;
+            // Raw true-color data.
+            if (bytesPerPixel == 1) {
+                for (int dy = y; dy < y + h; dy++) {
+                    offset = bitmapData.offset(x, dy);
+                    for (int dx = 0; dx < w; dx++) {
+                        pixels[offset++] = colorPalette[0xFF & data[boffset++]];
+                    }
+                }
+            } else {
+                for (int dy = y; dy < y + h; dy++) {
+                    offset = bitmapData.offset(x, dy);
+                    for (int dx = 0; dx < w; dx++) {
+                        idx = boffset * 3;
+                        boffset++;
+                        pixels[offset++] = (data[idx] & 0xFF) << 16 |
+                                (data[idx + 1] & 0xFF) << 8 |
+                                (data[idx + 2] & 0xFF);
                     }
                 }
             }
         }
 
-        bitmapData.updateBitmap(x, y, w, h);
+        synchronized (bitmapData) {
+            bitmapData.updateBitmap(x, y, w, h);
+        }
         vncCanvas.reDraw(x, y, w, h);
     }
 
@@ -1211,4 +1143,64 @@ public class Decoder {
 
         return softCursorPixels;
     }
+
+    /**
+     * Header fields and payload of a Tight or ZRLE rect, so that it can be decoded after
+     * the protocol thread has moved on to the next one.
+     */
+    private static class EncodedRect {
+        int x, y, w, h;
+        boolean valid;
+
+        // Tight
+        boolean zstd;
+        int subencoding, resetStreams, streamId, numColors, rowSize, dataSize, fillColor;
+        boolean useGradient;
+        final byte[] palette8 = new byte[2];
+        final int[] palette24 = new int[256];
+        final Paint paint = new Paint();
+
+        // Raw, compressed or JPEG data, grows as needed and is kept across rects
+        byte[] data = new byte[4096];
+        int dataLen;
+        // Time spent inflating data, for the decode stats
+        long inflateNs;
+
+        EncodedRect() {
+            paint.setStyle(Style.FILL);
+        }
+
+        void set(int x, int y, int w, int h, boolean valid) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.valid = valid;
+            dataLen = 0;
+            inflateNs = 0;
+        }
+
+        void readData(RfbProto rfb, int len) throws IOException {
+            if (len > data.length) {
+                data = new byte[len * 2];
+            }
+            rfb.readFully(data, 0, len);
+            dataLen = len;
+        }
+    }
+
+    private static class GrowableBuffer {
+        private byte[] buf;
+
+        GrowableBuffer(int size) {
+            buf = new byte[size];
+        }
+
+        byte[] ensure(int size) {
+            if (size > buf.length) {
+                buf = new byte[size * 2];
+            }
+            return buf;
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package com.qihua.bVNC;
+
+import android.util.Log;
+
+/**
+ * Picks the Tight JPEG quality, compression level and preferred encoding from the
+ * measured throughput and round-trip time, similar to TigerVNC's automatic selection.
+ * <p>
+ * Throughput is sampled per framebuffer update and evaluated over windows of about a
+ * second. A different setting is only chosen after it has won several windows in a
+ * row, so that a single burst or stall does not make the encoding flap.
+ */
+class EncodingController {
+    private final static String TAG = "EncodingController";
+
+    // Updates smaller than this say more about latency than about bandwidth
+    private static final long MIN_SAMPLE_BYTES = 4096;
+    private static final long WINDOW_NS = 1000000000L;
+    private static final int WINDOWS_TO_SWITCH = 3;
+
+    private enum Link {
+        LAN(8, 1),
+        BROADBAND(7, 6),
+        SLOW(5, 7),
+        VERY_SLOW(3, 9);
+
+        final int jpegQuality;
+        final int compressLevel;
+
+        Link(int jpegQuality, int compressLevel) {
+            this.jpegQuality = jpegQuality;
+            this.compressLevel = compressLevel;
+        }
+    }
+
+    private final int userPreferredEncoding;
+    // Starts with the settings that were fixed before, until a measurement says otherwise
+    private Link current = Link.BROADBAND;
+    private boolean measured = false;
+    private Link candidate = null;
+    private int candidateWindows = 0;
+
+    private long windowBytes = 0;
+    private long windowNs = 0;
+    private long kbps = -1;
+    private long rttMs = -1;
+
+    EncodingController(int userPreferredEncoding) {
+        this.userPreferredEncoding = userPreferredEncoding;
+    }
+
+    /**
+     * Records one framebuffer update of the given size that took the given time to arrive.
+     *
+     * @return true if the encoding settings changed and SetEncodings has to be sent again.
+     */
+    boolean updateReceived(long bytes, long ns) {
+        if (bytes < MIN_SAMPLE_BYTES || ns <= 0) {
+            return false;
+        }
+
+        windowBytes += bytes;
+        windowNs += ns;
+        if (windowNs < WINDOW_NS) {
+            return false;
+        }
+
+        long sample = windowBytes * 8 * 1000000L / windowNs;
+        kbps = kbps < 0 ? sample : (kbps + sample) / 2;
+        windowBytes = 0;
+        windowNs = 0;
+
+        return evaluate();
+    }
+
+    void rttMeasured(long ms) {
+        rttMs = rttMs < 0 ? ms : (rttMs * 3 + ms) / 4;
+    }
+
+    private boolean evaluate() {
+        Link link;
+        if (kbps > 16000) {
+            link = Link.LAN;
+        } else if (kbps > 3000) {
+            link = Link.BROADBAND;
+        } else if (kbps > 1000) {
+            link = Link.SLOW;
+        } else {
+            link = Link.VERY_SLOW;
+        }
+
+        // A long round trip with little bandwidth means every byte saved shortens
+        // the time until the update is complete.
+        if (rttMs > 150 && link == Link.BROADBAND) {
+            link = Link.SLOW;
+        }
+
+        if (link == current) {
+            candidate = null;
+            candidateWindows = 0;
+            return false;
+        }
+
+        if (link != candidate) {
+            candidate = link;
+            candidateWindows = 0;
+        }
+        if (++candidateWindows < WINDOWS_TO_SWITCH) {
+            return false;
+        }
+
+        Log.i(TAG, "Switching to " + link + " settings at " + kbps + " kbit/s, rtt " + rttMs + " ms");
+        current = link;
+        measured = true;
+        candidate = null;
+        candidateWindows = 0;
+        return true;
+    }
+
+    int getJpegQuality() {
+        return current.jpegQuality;
+    }
+
+    int getCompressLevel() {
+        return current.compressLevel;
+    }
+
+    /**
+     * Lossless encodings are only worth their size on a fast link, otherwise Tight
+     * with JPEG is preferred.
+     */
+    int getPreferredEncoding() {
+        if (!measured || current == Link.LAN || userPreferredEncoding == RfbProto.EncodingTight
+                || userPreferredEncoding == RfbProto.EncodingTightZstd) {
+            return userPreferredEncoding;
+        }
+        return RfbProto.EncodingTight;
+    }
+
+    long getKbps() {
+        return kbps;
+    }
+
+    long getRttMs() {
+        return rttMs;
+    }
+}
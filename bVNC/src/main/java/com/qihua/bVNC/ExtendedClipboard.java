@@ -0,0 +1,228 @@
+package com.qihua.bVNC;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The client side of the Extended Clipboard pseudo-encoding, which servers that support
+ * it announce by sending their capabilities in a ServerCutText with a negative length.
+ * <p>
+ * Only text is exchanged. Instead of sending every clipboard change along, the other
+ * side is notified that there is new text and asks for it if it wants it. The text
+ * itself is sent as UTF-8 with CRLF line endings in a zlib stream, up to the maximum
+ * size each side announced.
+ * Protocol: https://github.com/rfbproto/rfbproto/blob/master/rfbproto.rst#extended-clipboard-pseudo-encoding
+ */
+class ExtendedClipboard {
+    private static final String TAG = "ExtendedClipboard";
+
+    static final int FORMAT_TEXT = 1;
+    // The formats are in the lower 16 bits of the flags
+    private static final int FORMAT_MASK = 0xffff;
+    static final int ACTION_CAPS = 1 << 24;
+    static final int ACTION_REQUEST = 1 << 25;
+    static final int ACTION_PEEK = 1 << 26;
+    static final int ACTION_NOTIFY = 1 << 27;
+    static final int ACTION_PROVIDE = 1 << 28;
+
+    /**
+     * The most clipboard text sent or received, in bytes of UTF-8.
+     */
+    static final int MAX_TEXT = 1024 * 1024;
+    /**
+     * The largest message accepted, zlib may make incompressible text a little larger.
+     */
+    static final int MAX_MESSAGE = MAX_TEXT + 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RfbProto rfb;
+    private boolean active;
+    private int serverActions;
+    private int serverMaxText;
+    // The local clipboard text, kept to be provided when the server asks for it
+    private String localText;
+
+    ExtendedClipboard(RfbProto rfb) {
+        this.rfb = rfb;
+    }
+
+    /**
+     * Whether the server has announced its support.
+     */
+    synchronized boolean isActive() {
+        return active;
+    }
+
+    synchronized void reset() {
+        active = false;
+        serverActions = 0;
+        serverMaxText = 0;
+    }
+
+    /**
+     * Handles the payload of an extended ServerCutText.
+     * @return text the server has provided, or null
+     */
+    synchronized String handleMessage(byte[] payload) throws IOException {
+        if (payload.length < 4) {
+            throw new IOException("Extended clipboard message too short");
+        }
+        int flags = readU32(payload, 0);
+
+        if ((flags & ACTION_CAPS) != 0) {
+            handleCaps(flags, payload);
+        } else if ((flags & ACTION_REQUEST) != 0) {
+            if ((flags & FORMAT_TEXT) != 0 && localText != null) {
+                provide(localText);
+            }
+        } else if ((flags & ACTION_PEEK) != 0) {
+            rfb.writeExtendedClipboard(flagsMessage(ACTION_NOTIFY | (localText != null ? FORMAT_TEXT : 0)));
+        } else if ((flags & ACTION_NOTIFY) != 0) {
+            // The clipboard of the server is only fetched when it has text
+            if ((flags & FORMAT_TEXT) != 0 && (serverActions & ACTION_REQUEST) != 0) {
+                rfb.writeExtendedClipboard(flagsMessage(ACTION_REQUEST | FORMAT_TEXT));
+            }
+        } else if ((flags & ACTION_PROVIDE) != 0) {
+            return readProvidedText(flags, payload);
+        }
+        return null;
+    }
+
+    private void handleCaps(int flags, byte[] payload) throws IOException {
+        // A maximum size follows for each format, the one of text comes first
+        if ((flags & FORMAT_TEXT) != 0 && payload.length >= 8) {
+            serverMaxText = readU32(payload, 4);
+        } else {
+            serverMaxText = 0;
+        }
+        serverActions = flags & ~FORMAT_MASK;
+        active = true;
+        Log.i(TAG, "Server supports the extended clipboard, flags " + Integer.toHexString(flags));
+
+        ByteArrayOutputStream caps = new ByteArrayOutputStream(8);
+        writeU32(caps, FORMAT_TEXT | ACTION_CAPS | ACTION_REQUEST | ACTION_PEEK | ACTION_NOTIFY | ACTION_PROVIDE);
+        writeU32(caps, MAX_TEXT);
+        rfb.writeExtendedClipboard(caps.toByteArray());
+
+        if (localText != null) {
+            announce();
+        }
+    }
+
+    /**
+     * Lets the server know about new clipboard text, which it fetches once it needs it.
+     * Servers that can't be notified get the text right away.
+     */
+    synchronized void clientClipboardChanged(String text) throws IOException {
+        localText = text;
+        if (active) {
+            announce();
+        }
+    }
+
+    private void announce() throws IOException {
+        if ((serverActions & ACTION_NOTIFY) != 0) {
+            rfb.writeExtendedClipboard(flagsMessage(ACTION_NOTIFY | FORMAT_TEXT));
+        } else if ((serverActions & ACTION_PROVIDE) != 0) {
+            provide(localText);
+        }
+    }
+
+    private void provide(String text) throws IOException {
+        byte[] bytes = text.replace("\r\n", "\n").replace("\n", "\r\n").getBytes(UTF_8);
+        // The size includes the terminating null
+        if (bytes.length + 1 > Math.min(serverMaxText, MAX_TEXT)) {
+            Log.w(TAG, "Not sending " + bytes.length + " bytes of clipboard text, the limit is "
+                    + Math.min(serverMaxText, MAX_TEXT));
+            return;
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(bytes.length + 5);
+        writeU32(data, bytes.length + 1);
+        data.write(bytes);
+        data.write(0);
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream(data.size() / 2 + 64);
+        writeU32(message, ACTION_PROVIDE | FORMAT_TEXT);
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data.toByteArray());
+            deflater.finish();
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                message.write(buffer, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+        rfb.writeExtendedClipboard(message.toByteArray());
+    }
+
+    /**
+     * Inflates a provide message, whose formats each come with a size and their data.
+     */
+    private String readProvidedText(int flags, byte[] payload) throws IOException {
+        if ((flags & FORMAT_TEXT) == 0) {
+            return null;
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload, 4, payload.length - 4);
+            byte[] size = new byte[4];
+            inflateFully(inflater, size, 4);
+            int length = readU32(size, 0);
+            if (length < 0 || length > MAX_TEXT) {
+                Log.w(TAG, "Ignoring " + length + " bytes of clipboard text from the server");
+                return null;
+            }
+            byte[] text = new byte[length];
+            inflateFully(inflater, text, length);
+            // Drop the terminating null
+            while (length > 0 && text[length - 1] == 0) {
+                length--;
+            }
+            return new String(text, 0, length, UTF_8).replace("\r\n", "\n");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void inflateFully(Inflater inflater, byte[] b, int len) throws IOException {
+        int off = 0;
+        try {
+            while (off < len) {
+                int n = inflater.inflate(b, off, len - off);
+                if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                    throw new IOException("Extended clipboard data ends early");
+                }
+                off += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad extended clipboard data", e);
+        }
+    }
+
+    private static byte[] flagsMessage(int flags) {
+        return new byte[]{(byte) (flags >> 24), (byte) (flags >> 16), (byte) (flags >> 8), (byte) flags};
+    }
+
+    private static int readU32(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    private static void writeU32(ByteArrayOutputStream out, int v) {
+        out.write(v >> 24);
+        out.write(v >> 16);
+        out.write(v >> 8);
+        out.write(v);
+    }
+}
@@ -17,6 +17,8 @@ public class FpsCounter {
     private long maxlastMs = 0;
     private int frameDropped = 0;
     private long frameDroppedMs = 0;
+    private long copiedBytes = 0;
+    private long copiedBytesPerSec = 0;
 
     Paint _textPaint;
 
@@ -37,6 +39,13 @@ public class FpsCounter {
         inputCount += 1;
     }
 
+    /**
+     * Counts bytes that decoders copied from an intermediate bitmap into the framebuffer.
+     */
+    public synchronized void countCopiedBytes(long bytes) {
+        copiedBytes += bytes;
+    }
+
     public long getLastCountMs() {
         return lastCountMs;
     }
@@ -70,6 +79,10 @@ public class FpsCounter {
             avg = (avg + fps)/ 2;
             lst = fps;
             inputFps = inputCount;
+            synchronized (this) {
+                copiedBytesPerSec = copiedBytes * 1000 / (System.currentTimeMillis() - lastCountMs);
+                copiedBytes = 0;
+            }
 
             lastCountMs = System.currentTimeMillis();
 
@@ -86,7 +99,7 @@ public class FpsCounter {
         char[] latText = ("DRAW COST: MAX-5:" + maxlatency + ", AVG:" + avglatency).toCharArray();
         canvas.drawText(latText, 0, latText.length, 100f, 140f, _textPaint);
 
-        char[] inputText = ("INPUT-FREQ: " + inputFps).toCharArray();
+        char[] inputText = ("INPUT-FREQ: " + inputFps + ", COPY: " + copiedBytesPerSec / 1024 + " KB/s").toCharArray();
         canvas.drawText(inputText, 0, inputText.length, 100f, 180f, _textPaint);
     }
 
@@ -0,0 +1,271 @@
+package com.qihua.bVNC;
+
+import android.graphics.Rect;
+
+/**
+ * Splits a flat int[] framebuffer into 64x64 tiles and tracks which of them were
+ * written to since they were last presented.
+ * <p>
+ * Optionally a 64 bit hash of each tile's pixels is kept. A dirty tile whose hash did
+ * not change since it was last presented is dropped, so servers re-sending unchanged
+ * content cost neither an upload nor a redraw. The hash mixes every pixel the way
+ * xxHash64 does, so that small edits can't cancel out as they can with a polynomial
+ * hash, where a damaged tile would never be presented.
+ * <p>
+ * Tiles that a CopyRect changed are tracked apart from the dirty ones when the renderer
+ * repeats the copy in its texture. They are redrawn and their hashes are refreshed,
+ * but they are not uploaded.
+ */
+class FramebufferTiles {
+    static final int TILE_SHIFT = 6;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    // The primes of xxHash64
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+    // Hashing is skipped for updates that dirty more than this fraction of the tiles
+    private static final int MAX_HASHED_DIVISOR = 4;
+
+    private final boolean hashing;
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+
+    // Tiles written to since the last call to collectChanged(), guarded by this
+    private long[] dirty;
+    // Tiles found to have changed by the last call to collectChanged()
+    private long[] changed;
+    // Tiles copied to since the last call to collectChanged(), guarded by this
+    private long[] copied;
+    // Tiles copied to as of the last call to collectChanged()
+    private long[] copiedCollected;
+    // Set from collectChanged() until the renderer has uploaded the changed tiles
+    private boolean uploadPending;
+    private long[] hashes;
+    private long[] hashValid;
+
+    FramebufferTiles(int width, int height, boolean hashing) {
+        this.hashing = hashing;
+        resize(width, height);
+    }
+
+    synchronized void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        rows = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+
+        int words = (columns * rows + 63) >> 6;
+        dirty = new long[words];
+        changed = new long[words];
+        copied = new long[words];
+        copiedCollected = new long[words];
+        hashValid = new long[words];
+        hashes = hashing ? new long[columns * rows] : null;
+        // Everything has to be presented once
+        markDirty(0, 0, width, height);
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Marks the tiles covered by the rect x, y, w, h as written to.
+     */
+    synchronized void markDirty(int x, int y, int w, int h) {
+        int left = Math.max(x, 0) >> TILE_SHIFT;
+        int top = Math.max(y, 0) >> TILE_SHIFT;
+        int right = Math.min((x + w - 1) >> TILE_SHIFT, columns - 1);
+        int bottom = Math.min((y + h - 1) >> TILE_SHIFT, rows - 1);
+
+        for (int row = top; row <= bottom; row++) {
+            for (int tile = row * columns + left, end = row * columns + right; tile <= end; tile++) {
+                dirty[tile >> 6] |= 1L << tile;
+            }
+        }
+    }
+
+    /**
+     * Marks the tiles covered by the rect x, y, w, h as changed by a copy that is
+     * repeated in the texture, so they must not be uploaded.
+     */
+    synchronized void markCopied(int x, int y, int w, int h) {
+        int left = Math.max(x, 0) >> TILE_SHIFT;
+        int top = Math.max(y, 0) >> TILE_SHIFT;
+        int right = Math.min((x + w - 1) >> TILE_SHIFT, columns - 1);
+        int bottom = Math.min((y + h - 1) >> TILE_SHIFT, rows - 1);
+
+        for (int row = top; row <= bottom; row++) {
+            for (int tile = row * columns + left, end = row * columns + right; tile <= end; tile++) {
+                copied[tile >> 6] |= 1L << tile;
+            }
+        }
+    }
+
+    /**
+     * @return whether the texture holds the same pixels as the framebuffer in the rect
+     * x, y, w, h, i.e. none of its tiles was written to since it was last uploaded.
+     */
+    synchronized boolean isUploaded(int x, int y, int w, int h) {
+        int left = Math.max(x, 0) >> TILE_SHIFT;
+        int top = Math.max(y, 0) >> TILE_SHIFT;
+        int right = Math.min((x + w - 1) >> TILE_SHIFT, columns - 1);
+        int bottom = Math.min((y + h - 1) >> TILE_SHIFT, rows - 1);
+
+        for (int row = top; row <= bottom; row++) {
+            for (int tile = row * columns + left, end = row * columns + right; tile <= end; tile++) {
+                long bit = 1L << tile;
+                if ((dirty[tile >> 6] & bit) != 0 || (uploadPending && (changed[tile >> 6] & bit) != 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the renderer once the tiles found changed by the last collectChanged()
+     * are in its texture.
+     */
+    synchronized void uploaded() {
+        uploadPending = false;
+    }
+
+    /**
+     * Takes the dirty tiles and keeps those whose content really changed, which can
+     * then be queried with isChanged(). Copied tiles are not reported by isChanged(),
+     * but they are part of bounds. Must be called from one thread at a time.
+     * @param pixels framebuffer with rows framebufferwidth apart
+     * @param bounds set to the bounding rect of the changed tiles, empty if none changed
+     * @return the number of changed tiles
+     */
+    int collectChanged(int[] pixels, Rect bounds) {
+        // A resize swaps all arrays, so work on the ones current at the start
+        long[] changed;
+        long[] copied;
+        long[] hashes;
+        long[] hashValid;
+        int width, height, columns;
+        synchronized (this) {
+            changed = dirty;
+            dirty = this.changed;
+            this.changed = changed;
+            copied = this.copied;
+            this.copied = copiedCollected;
+            copiedCollected = copied;
+            for (int i = 0; i < dirty.length; i++) {
+                dirty[i] = 0;
+                this.copied[i] = 0;
+            }
+            uploadPending = true;
+            hashes = this.hashes;
+            hashValid = this.hashValid;
+            width = this.width;
+            height = this.height;
+            columns = this.columns;
+        }
+
+        // Hashing costs about as much as presenting the tile, it only pays off when little
+        // changed. A large update, like a video or a scrolled page, is presented as it is
+        // and the hashes of its tiles are from before it.
+        if (hashes != null && countTiles(changed) > (columns * rows) / MAX_HASHED_DIVISOR) {
+            for (int word = 0; word < changed.length; word++) {
+                hashValid[word] &= ~(changed[word] | copied[word]);
+            }
+            hashes = null;
+        }
+
+        bounds.setEmpty();
+        int count = 0;
+        for (int word = 0; word < changed.length; word++) {
+            long bits = changed[word] | copied[word];
+            while (bits != 0) {
+                int tile = (word << 6) + Long.numberOfTrailingZeros(bits);
+                long bit = 1L << tile;
+                bits &= bits - 1;
+
+                int tx = (tile % columns) << TILE_SHIFT;
+                int ty = (tile / columns) << TILE_SHIFT;
+                int tw = Math.min(TILE_SIZE, width - tx);
+                int th = Math.min(TILE_SIZE, height - ty);
+
+                // While the framebuffer is being resized the pixels may not match, in which
+                // case the tile is simply presented
+                if (hashes != null && pixels != null && (ty + th - 1) * width + tx + tw <= pixels.length) {
+                    long hash = hashTile(pixels, width, tx, ty, tw, th);
+                    // The hash of a copied tile is from before the copy, the same hash
+                    // does not mean the texture is up to date
+                    if ((copied[word] & bit) == 0 && (hashValid[word] & bit) != 0 && hashes[tile] == hash) {
+                        // Repainted with the same content
+                        changed[word] &= ~bit;
+                        continue;
+                    }
+                    hashes[tile] = hash;
+                    hashValid[word] |= bit;
+                }
+
+                count++;
+                bounds.union(tx, ty, tx + tw, ty + th);
+            }
+        }
+        return count;
+    }
+
+    private static int countTiles(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Hashes the pixels of a tile, or any rect of a framebuffer, with the rounds and final
+     * mix of xxHash64, one pixel per round.
+     */
+    static long hashTile(int[] pixels, int stride, int x, int y, int w, int h) {
+        long hash = PRIME4 + ((long) w << 32 | h);
+        int offset = y * stride + x;
+        for (int j = 0; j < h; j++, offset += stride) {
+            for (int i = offset, end = offset + w; i < end; i++) {
+                long k = Long.rotateLeft((pixels[i] & 0xffffffffL) * PRIME2, 31) * PRIME1;
+                hash = Long.rotateLeft(hash ^ k, 27) * PRIME1 + PRIME4;
+            }
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * @return whether the tile at column, row was found changed by the last collectChanged().
+     */
+    boolean isChanged(int column, int row) {
+        long[] changed = this.changed;
+        int tile = row * columns + column;
+        return (tile >> 6) < changed.length && (changed[tile >> 6] & (1L << tile)) != 0;
+    }
+
+    /**
+     * @return whether the tile at column, row was found changed or was copied to by the
+     * last collectChanged(), that is whether it is part of the frame presented next.
+     */
+    boolean isDamaged(int column, int row) {
+        long[] changed = this.changed;
+        long[] copied = copiedCollected;
+        int tile = row * columns + column;
+        long bit = 1L << tile;
+        return (tile >> 6) < changed.length && ((changed[tile >> 6] | copied[tile >> 6]) & bit) != 0;
+    }
+}
@@ -39,6 +39,10 @@ class FullBufferBitmapData extends AbstractBitmapData {
     int yoffset;
     int dataWidth;
     int dataHeight;
+    /**
+     * Tracks which parts of bitmapPixels changed, so only those are redrawn
+     */
+    final FramebufferTiles tiles;
 
     /**
      * @param p
@@ -54,6 +58,8 @@ class FullBufferBitmapData extends AbstractBitmapData {
         dataHeight = framebufferheight;
         android.util.Log.i("FBBM", "bitmapsize = (" + bitmapwidth + "," + bitmapheight + ")");
         bitmapPixels = new int[framebufferwidth * framebufferheight];
+        tiles = new FramebufferTiles(framebufferwidth, framebufferheight,
+                Utils.querySharedPreferenceBoolean(c.getContext(), Constants.tileHashingTag, false));
         drawable.startDrawing();
     }
 
@@ -156,6 +162,7 @@ class FullBufferBitmapData extends AbstractBitmapData {
             drawable = createDrawable();
             drawable.startDrawing();
         }
+        tiles.resize(framebufferwidth, framebufferheight);
     }
 
     /* (non-Javadoc)
@@ -206,10 +213,10 @@ class FullBufferBitmapData extends AbstractBitmapData {
         }
 
         /* (non-Javadoc)
-         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         * @see com.qihua.bVNC.AbstractBitmapDrawable#drawFramebuffer(android.graphics.Canvas)
          */
         @Override
-        public void draw(Canvas canvas) {
+        void drawFramebuffer(Canvas canvas) {
             toDraw = canvas.getClipBounds();
 
             // To avoid artifacts, we need to enlarge the box by one pixel in all directions.
@@ -240,7 +247,6 @@ class FullBufferBitmapData extends AbstractBitmapData {
                 synchronized (this) {
                     canvas.drawBitmap(data.bitmapPixels, offset(xo, yo), data.framebufferwidth,
                             xo, yo, drawWidth, drawHeight, false, _defaultPaint);
-                    canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
                 }
             } catch (Throwable e) {
             }
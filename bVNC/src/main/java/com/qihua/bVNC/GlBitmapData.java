@@ -0,0 +1,67 @@
+package com.qihua.bVNC;
+
+import com.undatech.opaque.RfbConnectable;
+
+/**
+ * A full framebuffer that is presented through {@link GlFramebufferRenderer} instead of
+ * being drawn with Canvas.drawBitmap(int[]). The pixels are kept in the same int array as
+ * in FullBufferBitmapData, the draw worker uploads the damaged parts of it into a texture
+ * and panning or zooming only redraws that texture.
+ * <p>
+ * A CopyRect is done in the pixels as usual, and then repeated by the renderer within
+ * the texture instead of uploading its destination. Scrolling then costs a copy on the
+ * GPU plus the upload of the newly exposed strip.
+ */
+class GlBitmapData extends FullBufferBitmapData {
+    /**
+     * Bumped whenever bitmapPixels is reallocated, so the renderer knows that the whole
+     * texture has to be uploaded again.
+     */
+    volatile int generation = 0;
+
+    // Copies waiting to be repeated in the texture, in the order they were done
+    static final int MAX_COPIES = 32;
+    // sx, sy, dx, dy, w, h of each copy, guarded by this
+    final int[] copies = new int[MAX_COPIES * 6];
+    int copyCount;
+
+    public GlBitmapData(RfbConnectable p, RemoteCanvas c, int capacity) {
+        super(p, c, capacity);
+    }
+
+    /**
+     * Copies the rect like copyRect() does, and has the renderer repeat the copy in the
+     * texture, which is only possible if the texture is up to date in the source rect.
+     * @return false if the copy was not done, then copyRect() has to be used as usual.
+     */
+    boolean copyRectOnGpu(int sx, int sy, int dx, int dy, int w, int h) {
+        if (sx < 0 || sy < 0 || sx + w > framebufferwidth || sy + h > framebufferheight
+                || !tiles.isUploaded(sx, sy, w, h)) {
+            return false;
+        }
+        synchronized (this) {
+            if (copyCount == MAX_COPIES) {
+                return false;
+            }
+            int i = copyCount * 6;
+            copies[i] = sx;
+            copies[i + 1] = sy;
+            copies[i + 2] = dx;
+            copies[i + 3] = dy;
+            copies[i + 4] = w;
+            copies[i + 5] = h;
+            copyCount++;
+            // Under the lock the renderer holds, so that it never uploads a tile the copy
+            // is still writing to
+            copyRect(sx, sy, dx, dy, w, h);
+        }
+        tiles.markCopied(dx, dy, w, h);
+        return true;
+    }
+
+    @Override
+    public void frameBufferSizeChanged() {
+        super.frameBufferSizeChanged();
+        generation++;
+    }
+}
@@ -0,0 +1,468 @@
+package com.qihua.bVNC;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+import android.opengl.GLUtils;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Presents a {@link GlBitmapData} framebuffer with OpenGL ES 3 on the surface of the
+ * canvas. The framebuffer lives in a texture of its own size, and only the changed
+ * tiles are uploaded into it with glTexSubImage2D. CopyRects are repeated within the
+ * texture rather than uploaded. Panning and zooming just draw the texture with a
+ * different transform.
+ * <p>
+ * All methods must be called from the same thread, the one that owns the EGL context.
+ */
+class GlFramebufferRenderer {
+    private final static String TAG = "GlFramebufferRenderer";
+
+    private static final String VERTEX_SHADER =
+            "#version 300 es\n" +
+            "uniform mat4 uTransform;\n" +
+            "uniform vec2 uTexSize;\n" +
+            "layout(location = 0) in vec2 aPosition;\n" +
+            "out vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    vTexCoord = aPosition / uTexSize;\n" +
+            "    gl_Position = uTransform * vec4(aPosition, 0.0, 1.0);\n" +
+            "}\n";
+
+    // The framebuffer ints are ARGB, which is BGRA in memory, and their alpha is not
+    // always set by the decoders. The cursor comes from a Bitmap with premultiplied RGBA.
+    private static final String FRAGMENT_SHADER =
+            "#version 300 es\n" +
+            "precision mediump float;\n" +
+            "uniform sampler2D uTexture;\n" +
+            "uniform bool uFramebuffer;\n" +
+            "in vec2 vTexCoord;\n" +
+            "out vec4 fragColor;\n" +
+            "void main() {\n" +
+            "    vec4 c = texture(uTexture, vTexCoord);\n" +
+            "    fragColor = uFramebuffer ? vec4(c.bgr, 1.0) : c;\n" +
+            "}\n";
+
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+
+    private int program;
+    private int transformLocation;
+    private int texSizeLocation;
+    private int framebufferLocation;
+
+    private int maxTextureSize;
+    private int framebufferTexture;
+    private int textureWidth;
+    private int textureHeight;
+    private int textureGeneration = -1;
+    private int[] uploadedPixels;
+    private IntBuffer pixelBuffer;
+
+    // CopyRects go from the framebuffer texture into the scratch texture and back, both
+    // attached to copyFramebuffer in turn
+    private int copyFramebuffer;
+    private int scratchTexture;
+    private int scratchWidth;
+    private int scratchHeight;
+    private boolean copiesUnsupported;
+
+    private int cursorTexture;
+    private Bitmap uploadedCursor;
+
+    private final float[] transform = new float[16];
+    private final float[] matrixValues = new float[9];
+    private final FloatBuffer quad = ByteBuffer.allocateDirect(8 * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private final int[] handles = new int[3];
+
+    /**
+     * Sets up an ES 3 context that renders to the given surface.
+     * @return false if that is not possible, in which case nothing is left allocated.
+     */
+    boolean init(Surface surface) {
+        try {
+            eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+            int[] version = new int[2];
+            if (eglDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+                throw new IllegalStateException("eglInitialize failed");
+            }
+
+            int[] configAttribs = {
+                    EGL14.EGL_RED_SIZE, 8,
+                    EGL14.EGL_GREEN_SIZE, 8,
+                    EGL14.EGL_BLUE_SIZE, 8,
+                    EGL14.EGL_ALPHA_SIZE, 8,
+                    EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR,
+                    EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT,
+                    EGL14.EGL_NONE
+            };
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] numConfigs = new int[1];
+            if (!EGL14.eglChooseConfig(eglDisplay, configAttribs, 0, configs, 0, 1, numConfigs, 0)
+                    || numConfigs[0] == 0) {
+                throw new IllegalStateException("No ES 3 config");
+            }
+
+            int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+            eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+            if (eglContext == EGL14.EGL_NO_CONTEXT) {
+                throw new IllegalStateException("eglCreateContext failed");
+            }
+
+            eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], surface,
+                    new int[]{EGL14.EGL_NONE}, 0);
+            if (eglSurface == EGL14.EGL_NO_SURFACE
+                    || !EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+                throw new IllegalStateException("Could not make the window surface current");
+            }
+            // Frames are paced by the Choreographer already
+            EGL14.eglSwapInterval(eglDisplay, 0);
+
+            program = createProgram();
+            transformLocation = GLES30.glGetUniformLocation(program, "uTransform");
+            texSizeLocation = GLES30.glGetUniformLocation(program, "uTexSize");
+            framebufferLocation = GLES30.glGetUniformLocation(program, "uFramebuffer");
+
+            GLES30.glGetIntegerv(GLES30.GL_MAX_TEXTURE_SIZE, handles, 0);
+            maxTextureSize = handles[0];
+            GLES30.glGenTextures(3, handles, 0);
+            framebufferTexture = handles[0];
+            cursorTexture = handles[1];
+            scratchTexture = handles[2];
+            setupTexture(framebufferTexture);
+            setupTexture(cursorTexture);
+            setupTexture(scratchTexture);
+            GLES30.glGenFramebuffers(1, handles, 0);
+            copyFramebuffer = handles[0];
+
+            GLES30.glBlendFunc(GLES30.GL_ONE, GLES30.GL_ONE_MINUS_SRC_ALPHA);
+            GLES30.glClearColor(0, 0, 0, 0);
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not initialize GL, falling back to canvas: " + e.getMessage());
+            release();
+            return false;
+        }
+    }
+
+    private static void setupTexture(int texture) {
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+    }
+
+    private static int createProgram() {
+        int vertex = compileShader(GLES30.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragment = compileShader(GLES30.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        int program = GLES30.glCreateProgram();
+        GLES30.glAttachShader(program, vertex);
+        GLES30.glAttachShader(program, fragment);
+        GLES30.glLinkProgram(program);
+        GLES30.glDeleteShader(vertex);
+        GLES30.glDeleteShader(fragment);
+
+        int[] status = new int[1];
+        GLES30.glGetProgramiv(program, GLES30.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES30.glGetProgramInfoLog(program);
+            GLES30.glDeleteProgram(program);
+            throw new IllegalStateException("Could not link program: " + log);
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES30.glCreateShader(type);
+        GLES30.glShaderSource(shader, source);
+        GLES30.glCompileShader(shader);
+
+        int[] status = new int[1];
+        GLES30.glGetShaderiv(shader, GLES30.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES30.glGetShaderInfoLog(shader);
+            GLES30.glDeleteShader(shader);
+            throw new IllegalStateException("Could not compile shader: " + log);
+        }
+        return shader;
+    }
+
+    /**
+     * Brings the framebuffer texture up to date. The CopyRects done since the last call are
+     * repeated, then the tiles found changed by the last FramebufferTiles.collectChanged()
+     * are uploaded, unless the framebuffer was resized or reallocated since the last call.
+     * @return false if the framebuffer is larger than the biggest texture the GPU supports.
+     */
+    boolean upload(GlBitmapData data) {
+        int width = data.framebufferwidth;
+        int height = data.framebufferheight;
+        if (width > maxTextureSize || height > maxTextureSize) {
+            return false;
+        }
+        if (width <= 0 || height <= 0 || data.bitmapPixels == null) {
+            return true;
+        }
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, framebufferTexture);
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 4);
+
+        synchronized (data) {
+            if (data.bitmapPixels != uploadedPixels) {
+                uploadedPixels = data.bitmapPixels;
+                pixelBuffer = IntBuffer.wrap(uploadedPixels);
+            }
+
+            // The framebuffer rows are framebufferwidth apart in the array, the sub-image
+            // is picked out of it by skipping pixels and rows.
+            GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, width);
+            if (width != textureWidth || height != textureHeight || data.generation != textureGeneration) {
+                GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_PIXELS, 0);
+                GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_ROWS, 0);
+                GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA8, width, height, 0,
+                        GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, pixelBuffer);
+                textureWidth = width;
+                textureHeight = height;
+                textureGeneration = data.generation;
+                // The copies are in the pixels just uploaded
+                data.copyCount = 0;
+            } else {
+                // Before the tiles, which may have been written to after the copies
+                copyRects(data);
+                uploadChangedTiles(data.tiles, width, height);
+            }
+            data.tiles.uploaded();
+        }
+
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_PIXELS, 0);
+        GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_ROWS, 0);
+        return true;
+    }
+
+    /**
+     * Repeats the CopyRects of GlBitmapData within the texture. Reading from the texture
+     * being written to is undefined, so each copy goes through the scratch texture. If the
+     * texture can't be rendered to, the destination is uploaded from the pixels instead.
+     */
+    private void copyRects(GlBitmapData data) {
+        if (data.copyCount == 0) {
+            return;
+        }
+
+        if (scratchWidth != textureWidth || scratchHeight != textureHeight) {
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, scratchTexture);
+            GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA8, textureWidth, textureHeight, 0,
+                    GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, null);
+            scratchWidth = textureWidth;
+            scratchHeight = textureHeight;
+        }
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, copyFramebuffer);
+        if (!copiesUnsupported) {
+            GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                    GLES30.GL_TEXTURE_2D, framebufferTexture, 0);
+            if (GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER) != GLES30.GL_FRAMEBUFFER_COMPLETE) {
+                Log.w(TAG, "Can't copy within the framebuffer texture, uploading CopyRects");
+                copiesUnsupported = true;
+            }
+        }
+
+        int[] copies = data.copies;
+        for (int i = 0; i < data.copyCount * 6; i += 6) {
+            int sx = copies[i];
+            int sy = copies[i + 1];
+            int dx = copies[i + 2];
+            int dy = copies[i + 3];
+            int w = copies[i + 4];
+            int h = copies[i + 5];
+
+            if (copiesUnsupported) {
+                GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, framebufferTexture);
+                GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_PIXELS, dx);
+                GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_ROWS, dy);
+                GLES30.glTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, dx, dy, w, h,
+                        GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, pixelBuffer);
+                continue;
+            }
+
+            // Texture rows are framebuffer rows from the top, just like the rows of a
+            // framebuffer object, so the coordinates need no flipping
+            GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                    GLES30.GL_TEXTURE_2D, framebufferTexture, 0);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, scratchTexture);
+            GLES30.glCopyTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, 0, 0, sx, sy, w, h);
+            GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                    GLES30.GL_TEXTURE_2D, scratchTexture, 0);
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, framebufferTexture);
+            GLES30.glCopyTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, dx, dy, 0, 0, w, h);
+        }
+        data.copyCount = 0;
+
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, framebufferTexture);
+    }
+
+    /**
+     * Uploads each run of adjacent changed tiles in a tile row with one glTexSubImage2D.
+     */
+    private void uploadChangedTiles(FramebufferTiles tiles, int width, int height) {
+        int columns = tiles.getColumns();
+        int rows = tiles.getRows();
+        for (int row = 0; row < rows; row++) {
+            int column = 0;
+            while (column < columns) {
+                if (!tiles.isChanged(column, row)) {
+                    column++;
+                    continue;
+                }
+
+                int first = column;
+                while (column < columns && tiles.isChanged(column, row)) {
+                    column++;
+                }
+
+                int x = first << FramebufferTiles.TILE_SHIFT;
+                int y = row << FramebufferTiles.TILE_SHIFT;
+                int w = Math.min(column << FramebufferTiles.TILE_SHIFT, width) - x;
+                int h = Math.min(y + FramebufferTiles.TILE_SIZE, height) - y;
+                if (w <= 0 || h <= 0) {
+                    continue;
+                }
+                GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_PIXELS, x);
+                GLES30.glPixelStorei(GLES30.GL_UNPACK_SKIP_ROWS, y);
+                GLES30.glTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, x, y, w, h,
+                        GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, pixelBuffer);
+            }
+        }
+    }
+
+    /**
+     * Draws the framebuffer texture and the soft cursor with the view transform, which maps
+     * full-frame coordinates to surface pixels, and presents the frame.
+     * @return false if the frame could not be presented, e.g. because the surface is gone.
+     */
+    boolean draw(Matrix viewMatrix, AbstractBitmapDrawable drawable, int surfaceWidth, int surfaceHeight) {
+        GLES30.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+        if (textureWidth == 0) {
+            return EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+        }
+
+        setTransform(viewMatrix, surfaceWidth, surfaceHeight);
+        GLES30.glUseProgram(program);
+        GLES30.glUniformMatrix4fv(transformLocation, 1, false, transform, 0);
+        GLES30.glEnableVertexAttribArray(0);
+
+        GLES30.glDisable(GLES30.GL_BLEND);
+        GLES30.glUniform1i(framebufferLocation, 1);
+        GLES30.glUniform2f(texSizeLocation, textureWidth, textureHeight);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, framebufferTexture);
+        drawQuad(0, 0, textureWidth, textureHeight);
+
+        Bitmap cursor = drawable.softCursor;
+        RectF cursorRect = drawable.cursorRect;
+        if (cursor != null && cursorRect != null && !cursor.isRecycled() && !cursorRect.isEmpty()) {
+            GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, cursorTexture);
+            if (cursor != uploadedCursor) {
+                GLUtils.texImage2D(GLES30.GL_TEXTURE_2D, 0, cursor, 0);
+                uploadedCursor = cursor;
+            }
+
+            // Positions are offset so the quad spans the cursor rect, and the
+            // texture coordinates still come out as 0..1 across it.
+            GLES30.glEnable(GLES30.GL_BLEND);
+            GLES30.glUniform1i(framebufferLocation, 0);
+            GLES30.glUniform2f(texSizeLocation, cursorRect.width(), cursorRect.height());
+            transform[12] += transform[0] * cursorRect.left + transform[4] * cursorRect.top;
+            transform[13] += transform[1] * cursorRect.left + transform[5] * cursorRect.top;
+            GLES30.glUniformMatrix4fv(transformLocation, 1, false, transform, 0);
+            drawQuad(0, 0, cursorRect.width(), cursorRect.height());
+        }
+
+        return EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+    }
+
+    /**
+     * Turns the affine view matrix into one that maps straight to clip space, with y
+     * pointing down like in the framebuffer.
+     */
+    private void setTransform(Matrix viewMatrix, int surfaceWidth, int surfaceHeight) {
+        viewMatrix.getValues(matrixValues);
+        float sx = 2f / surfaceWidth;
+        float sy = -2f / surfaceHeight;
+
+        transform[0] = matrixValues[Matrix.MSCALE_X] * sx;
+        transform[1] = matrixValues[Matrix.MSKEW_Y] * sy;
+        transform[2] = 0;
+        transform[3] = 0;
+        transform[4] = matrixValues[Matrix.MSKEW_X] * sx;
+        transform[5] = matrixValues[Matrix.MSCALE_Y] * sy;
+        transform[6] = 0;
+        transform[7] = 0;
+        transform[8] = 0;
+        transform[9] = 0;
+        transform[10] = 1;
+        transform[11] = 0;
+        transform[12] = matrixValues[Matrix.MTRANS_X] * sx - 1;
+        transform[13] = matrixValues[Matrix.MTRANS_Y] * sy + 1;
+        transform[14] = 0;
+        transform[15] = 1;
+    }
+
+    private void drawQuad(float left, float top, float right, float bottom) {
+        quad.clear();
+        quad.put(left).put(top)
+                .put(right).put(top)
+                .put(left).put(bottom)
+                .put(right).put(bottom);
+        quad.flip();
+        GLES30.glVertexAttribPointer(0, 2, GLES30.GL_FLOAT, false, 0, quad);
+        GLES30.glDrawArrays(GLES30.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    /**
+     * Frees the context and disconnects from the surface, after which a canvas can be
+     * locked on it again.
+     */
+    void release() {
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (eglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(eglDisplay, eglSurface);
+            }
+            if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                // Textures, the framebuffer object and the program go with the context
+                EGL14.eglDestroyContext(eglDisplay, eglContext);
+            }
+            EGL14.eglReleaseThread();
+        }
+
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+        eglSurface = EGL14.EGL_NO_SURFACE;
+        textureWidth = 0;
+        textureHeight = 0;
+        textureGeneration = -1;
+        uploadedPixels = null;
+        pixelBuffer = null;
+        uploadedCursor = null;
+        scratchWidth = 0;
+        scratchHeight = 0;
+        copiesUnsupported = false;
+    }
+}
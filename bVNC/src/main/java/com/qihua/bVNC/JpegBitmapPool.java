@@ -0,0 +1,104 @@
+package com.qihua.bVNC;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps the bitmaps that Tight JPEG rects are decoded into, so that BitmapFactory can
+ * reuse them through inBitmap instead of allocating a native bitmap for every rect.
+ * <p>
+ * Bitmaps are bucketed by pixel count rounded up to a power of two. A reused bitmap is
+ * reconfigured to the size of the JPEG, which works as long as it has enough bytes.
+ */
+class JpegBitmapPool {
+    private final static String TAG = "JpegBitmapPool";
+
+    // 2^22 pixels is more than a 4K frame
+    private static final int BUCKETS = 23;
+    // Parallel decoding may have a few bitmaps of the same size in use at once
+    private static final int MAX_PER_BUCKET = 4;
+
+    private final Bitmap.Config config;
+    private final ArrayDeque<Bitmap>[] buckets;
+
+    @SuppressWarnings("unchecked")
+    JpegBitmapPool(Bitmap.Config config) {
+        this.config = config;
+        buckets = new ArrayDeque[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new ArrayDeque<Bitmap>(MAX_PER_BUCKET);
+        }
+    }
+
+    private static int bucket(int w, int h) {
+        int pixels = Math.max(w * h, 1);
+        return 32 - Integer.numberOfLeadingZeros(pixels - 1);
+    }
+
+    /**
+     * Decodes a JPEG of w x h pixels, into a pooled bitmap when possible. The result has
+     * to be handed back with release().
+     */
+    Bitmap decode(byte[] data, int len, int w, int h, BitmapFactory.Options opts) {
+        int b = bucket(w, h);
+        if (b >= BUCKETS) {
+            opts.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, len, opts);
+        }
+
+        Bitmap reuse;
+        synchronized (buckets[b]) {
+            reuse = buckets[b].poll();
+        }
+        if (reuse == null) {
+            int side = (int) Math.ceil(Math.sqrt(1 << b));
+            reuse = Bitmap.createBitmap(side, side, config);
+        }
+
+        opts.inMutable = true;
+        opts.inBitmap = reuse;
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, len, opts);
+        } catch (IllegalArgumentException e) {
+            // The JPEG did not fit, e.g. its header does not match the rect size
+            Log.w(TAG, "Could not reuse bitmap: " + e.getMessage());
+            reuse.recycle();
+            opts.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, len, opts);
+        } finally {
+            opts.inBitmap = null;
+        }
+    }
+
+    void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        // Bucket by capacity rounded down, so the bitmap fits anything in its bucket
+        int capacity = bitmap.getAllocationByteCount() / bytesPerPixel();
+        int b = bucket(capacity, 1);
+        if (b > 0 && (1 << b) > capacity) {
+            b--;
+        }
+        if (!bitmap.isMutable() || b >= BUCKETS) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (buckets[b]) {
+            if (buckets[b].size() < MAX_PER_BUCKET) {
+                buckets[b].push(bitmap);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    private int bytesPerPixel() {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+}
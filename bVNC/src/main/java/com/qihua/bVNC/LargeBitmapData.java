@@ -407,10 +407,10 @@ class LargeBitmapData extends AbstractBitmapData {
         }
 
         /* (non-Javadoc)
-         * @see android.graphics.drawable.DrawableContainer#draw(android.graphics.Canvas)
+         * @see com.qihua.bVNC.AbstractBitmapDrawable#drawFramebuffer(android.graphics.Canvas)
          */
         @Override
-        public void draw(Canvas canvas) {
+        void drawFramebuffer(Canvas canvas) {
             //android.util.Log.i("LBM", "Drawing "+xoffset+" "+yoffset);
             int xoff, yoff;
             synchronized (LargeBitmapData.this) {
@@ -0,0 +1,121 @@
+package com.qihua.bVNC;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs rectangle decode jobs of one framebuffer update on a fork-join pool.
+ * <p>
+ * A job waits for every earlier job whose rectangle it overlaps, so the framebuffer
+ * ends up the same as when the rects are decoded in order. Jobs that share decoder
+ * state, such as one of Tight's zlib streams, are put in the same lane and run in
+ * submission order.
+ */
+class RectScheduler {
+    public static final int NO_LANE = -1;
+
+    interface Job {
+        void run() throws Exception;
+    }
+
+    private static class InFlight {
+        final Rect rect;
+        final CompletableFuture<Void> future;
+
+        InFlight(Rect rect, CompletableFuture<Void> future) {
+            this.rect = rect;
+            this.future = future;
+        }
+    }
+
+    private static ForkJoinPool pool;
+
+    private final CompletableFuture<Void>[] lanes;
+    private final ArrayList<InFlight> inFlight = new ArrayList<InFlight>();
+    private final ArrayList<CompletableFuture<Void>> deps = new ArrayList<CompletableFuture<Void>>();
+
+    @SuppressWarnings("unchecked")
+    RectScheduler(int numLanes) {
+        lanes = new CompletableFuture[numLanes];
+        synchronized (RectScheduler.class) {
+            if (pool == null) {
+                pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            }
+        }
+    }
+
+    static boolean isUseful() {
+        return Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Queues a job for the rect x, y, w, h, an empty rect only orders the job in its lane.
+     * Must be called from the protocol thread.
+     */
+    void submit(int lane, int x, int y, int w, int h, final Job job) {
+        Rect rect = new Rect(x, y, x + w, y + h);
+
+        deps.clear();
+        for (int i = inFlight.size() - 1; i >= 0; i--) {
+            InFlight f = inFlight.get(i);
+            if (f.future.isDone() && !f.future.isCompletedExceptionally()) {
+                inFlight.remove(i);
+            } else if (Rect.intersects(f.rect, rect)) {
+                deps.add(f.future);
+            }
+        }
+        if (lane != NO_LANE && lanes[lane] != null) {
+            deps.add(lanes[lane]);
+        }
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        };
+
+        CompletableFuture<Void> future;
+        if (deps.isEmpty()) {
+            future = CompletableFuture.runAsync(task, pool);
+        } else {
+            CompletableFuture<?>[] waitFor = deps.toArray(new CompletableFuture<?>[deps.size()]);
+            future = CompletableFuture.allOf(waitFor).thenRunAsync(task, pool);
+        }
+
+        if (lane != NO_LANE) {
+            lanes[lane] = future;
+        }
+        inFlight.add(new InFlight(rect, future));
+    }
+
+    /**
+     * Waits until every submitted job has finished, and rethrows the first decoding error.
+     */
+    void barrier() throws Exception {
+        try {
+            for (InFlight f : inFlight) {
+                f.future.join();
+            }
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            inFlight.clear();
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = null;
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
@@ -45,18 +46,21 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.text.ClipboardManager;
 import android.text.InputType;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Display;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.PointerIcon;
 import android.view.View;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.inputmethod.BaseInputConnection;
@@ -89,6 +93,8 @@ import com.qihua.bVNC.input.RemoteSpicePointer;
 import com.qihua.bVNC.input.RemoteVncKeyboard;
 import com.qihua.bVNC.input.RemoteVncPointer;
 import com.qihua.bVNC.util.SmartResolutionUtils;
+import com.qihua.util.ObjectPool;
+import com.qihua.util.SafeObjectPool;
 import com.tigervnc.rfb.AuthFailureException;
 import com.undatech.opaque.Connection;
 import com.undatech.opaque.DrawTask;
@@ -105,6 +111,7 @@ import com.undatech.opaque.proxmox.pojo.PveResource;
 import com.undatech.opaque.proxmox.pojo.SpiceDisplay;
 import com.undatech.opaque.proxmox.pojo.VmStatus;
 import com.undatech.opaque.util.FileUtils;
+import com.undatech.opaque.util.InputLatencyTracer;
 
 import org.apache.http.HttpException;
 import org.json.JSONException;
@@ -114,8 +121,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.security.auth.login.LoginException;
 
@@ -148,7 +156,6 @@ public class RemoteCanvas extends SurfaceView implements Viewable
     public AbstractBitmapData bitmapData;
     // Progress dialog shown at connection time.
     public AlertDialog progressDialog;
-    public boolean serverJustCutText = false;
     public Runnable setModes;
     public Runnable hideKeyboardAndExtraKeys;
     public boolean spiceUpdateReceived = false;
@@ -176,7 +183,6 @@ public class RemoteCanvas extends SurfaceView implements Viewable
     boolean compact = false;
     // Used to set the contents of the clipboard.
     ClipboardManager clipboard;
-    Timer clipboardMonitorTimer;
     ClipboardMonitor clipboardMonitor;
     /*
      * Position of the top left portion of the <i>visible</i> part of the screen, in
@@ -242,6 +248,9 @@ public class RemoteCanvas extends SurfaceView implements Viewable
     // Internal bitmap data
     private int capacity;
     public FpsCounter fpsCounter;
+    // Null unless the debug info is shown
+    private DecodeStats decodeStats;
+    private InputLatencyTracer latencyTracer;
 
     private Runnable showMessage = new Runnable() {
         public void run() {
@@ -269,6 +278,10 @@ public class RemoteCanvas extends SurfaceView implements Viewable
         super(context, attrs);
 
         fpsCounter = new FpsCounter();
+        if (Utils.querySharedPreferenceBoolean(context, Constants.enableDebugInfo, false)) {
+            decodeStats = new DecodeStats();
+            latencyTracer = new InputLatencyTracer();
+        }
 
         // 👇 关键：让 MIUI 知道这个 View 是“有意图”接收触摸的
         setClickable(true);           // 必须
@@ -326,6 +339,10 @@ public class RemoteCanvas extends SurfaceView implements Viewable
         if (!outDisplay && touchpad) {
             drawTouchpadHint();
         }
+        if (drawWorker != null) {
+            // A new surface starts out empty
+            drawWorker.invalidateView();
+        }
     }
 
     @Override
@@ -338,6 +355,9 @@ public class RemoteCanvas extends SurfaceView implements Viewable
     @Override
     public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
         isRunning = false;
+        if (drawWorker != null) {
+            drawWorker.releaseGl();
+        }
     }
 
     void init(final Connection settings, final Handler handler, final Runnable setModes, final Runnable hideKeyboardAndExtraKeys, final String vvFileName) {
@@ -416,13 +436,11 @@ public class RemoteCanvas extends SurfaceView implements Viewable
      * Initializes the clipboard monitor.
      */
     private void initializeClipboardMonitor() {
-        clipboardMonitor = new ClipboardMonitor(getContext(), this);
         if (clipboardMonitor != null) {
-            clipboardMonitorTimer = new Timer();
-            if (clipboardMonitorTimer != null) {
-                clipboardMonitorTimer.schedule(clipboardMonitor, 0, 500);
-            }
+            clipboardMonitor.stop();
         }
+        clipboardMonitor = new ClipboardMonitor(getContext(), this);
+        clipboardMonitor.start();
     }
 
     /**
@@ -482,13 +500,12 @@ public class RemoteCanvas extends SurfaceView implements Viewable
             handleUncaughtException(e);
         }
 
-        clipboardMonitor = new ClipboardMonitor(getContext(), this);
-        clipboardMonitorTimer = new Timer();
-        try {
-            clipboardMonitorTimer.schedule(clipboardMonitor, 0, 500);
-        } catch (NullPointerException ignored) {
+        if (rfbconn != null) {
+            rfbconn.setLatencyTracer(latencyTracer);
         }
 
+        initializeClipboardMonitor();
+
         return pointer;
     }
 
@@ -1302,7 +1319,10 @@ public class RemoteCanvas extends SurfaceView implements Viewable
             try {
                 // TODO: Remove this if Android 4.2 receives a fix for a bug which causes it to stop drawing
                 // the bitmap in CompactBitmapData when under load (say playing a video over VNC).
-                if (!compact) {
+                if (Utils.querySharedPreferenceBoolean(getContext(), Constants.glFramebufferTag, false)) {
+                    bitmapData = new GlBitmapData(rfbconn, this, capacity);
+                    Log.i(TAG, "Using GlBitmapData.");
+                } else if (!compact) {
                     bitmapData = new FullBufferBitmapData(rfbconn, this, capacity);
                     Log.i(TAG, "Using FullBufferBitmapData.");
                 } else {
@@ -1478,6 +1498,9 @@ public class RemoteCanvas extends SurfaceView implements Viewable
      */
     public void setClipboardText(String s) {
         if (s != null && s.length() > 0) {
+            if (clipboardMonitor != null) {
+                clipboardMonitor.remoteTextSet(s);
+            }
             clipboard.setText(s);
         }
     }
@@ -1499,6 +1522,10 @@ public class RemoteCanvas extends SurfaceView implements Viewable
             rfbconn.close();
         }
 
+        if (latencyTracer != null) {
+            Log.i(TAG, latencyTracer.dump());
+        }
+
         if (handler != null) {
             handler.removeCallbacksAndMessages(null);
         }
@@ -1511,7 +1538,7 @@ public class RemoteCanvas extends SurfaceView implements Viewable
 
         if (connection != null) {
             Log.d(TAG, "Saving screenshot to " + getContext().getFilesDir() + "/" + connection.getScreenshotFilename());
-            Utils.writeScreenshotToFile(bitmapData, getContext().getFilesDir() + "/" + connection.getScreenshotFilename(), 720);
+            ScreenshotWriter.write(bitmapData, getContext().getFilesDir() + "/" + connection.getScreenshotFilename(), 720);
         }
 
 //        disposeDrawable();
@@ -1529,13 +1556,10 @@ public class RemoteCanvas extends SurfaceView implements Viewable
         Log.v(TAG, "Cleaning up resources");
 
         removeCallbacksAndMessages();
-        if (clipboardMonitorTimer != null) {
-            clipboardMonitorTimer.cancel();
-            // Occasionally causes a NullPointerException
-            //clipboardMonitorTimer.purge();
-            clipboardMonitorTimer = null;
+        if (clipboardMonitor != null) {
+            clipboardMonitor.stop();
+            clipboardMonitor = null;
         }
-        clipboardMonitor = null;
         clipboard = null;
         setModes = null;
         decoder = null;
@@ -1568,7 +1592,7 @@ public class RemoteCanvas extends SurfaceView implements Viewable
         //android.util.Log.d(TAG, "resetScroll: " + (absoluteXPosition - shiftX) * scale + ", "
         //                                        + (absoluteYPosition - shiftY) * scale);
 
-        reDraw(0, 0, displayRect.width(), displayRect.height());
+        invalidateView();
 //        scrollTo((int) ((absoluteXPosition) * scale),
 //                (int) ((absoluteYPosition) * scale));
     }
@@ -1799,18 +1823,85 @@ public class RemoteCanvas extends SurfaceView implements Viewable
         bitmapData.setDrawCursor(false);
     }
 
-    private class DrawWorker implements Runnable {
+    /**
+     * Presents the framebuffer once per display refresh. DrawTasks only carry damage, all
+     * tasks queued since the last frame are merged and drawn by a single Choreographer
+     * callback, so the frame rate follows the panel (60/90/120 Hz) and the last update of
+     * a burst is always shown.
+     */
+    private class DrawWorker implements Choreographer.FrameCallback {
+        private static final long DEFAULT_FRAME_INTERVAL_NS = 1000000000L / 60;
+        private static final int RING_SIZE = 256;
+
         private long lastDraw;
-        private Thread thread;
-        private LinkedBlockingQueue<DrawTask> queue = new LinkedBlockingQueue<DrawTask>();
+        private HandlerThread thread;
+        private Handler handler;
+        private Choreographer choreographer;
+        // Tasks are recycled, and queued in a preallocated ring, so that the
+        // update -> present path does not allocate in steady state.
+        private final SafeObjectPool<DrawTask> taskPool = new SafeObjectPool<DrawTask>() {
+            @Override
+            protected DrawTask itemForPool() {
+                return new DrawTask();
+            }
+        };
+        @SuppressWarnings("unchecked")
+        private final ObjectPool.Entry<DrawTask>[] ring = new ObjectPool.Entry[RING_SIZE];
+        private int ringHead = 0;
+        private int ringSize = 0;
+        private final AtomicBoolean frameScheduled = new AtomicBoolean(false);
         private boolean showFps = false;
 
+        // Damage collected from pending DrawTasks, in full-frame coordinates.
+        private final Rect damage = new Rect();
+        // The damage being presented by the current frame
+        private final Rect frameDamage = new Rect();
+        // Set when only the view transform changed, which needs a frame but no damage
+        private final AtomicBoolean viewInvalidated = new AtomicBoolean(false);
+        // Presents GlBitmapData framebuffers, created on this thread once there is a surface
+        private GlFramebufferRenderer glRenderer;
+        private boolean glFailed = false;
+        // With partial frames, frames without GL lock the surface for software drawing,
+        // which keeps what the last frame posted outside of the dirty rect. While the view
+        // transform stays the same only the damaged part of the screen is redrawn.
+        // Otherwise every frame is drawn in full on a hardware canvas. A surface can't be
+        // locked both ways, so the choice holds for the whole session.
+        private final boolean partialFrames;
+        private boolean redrawAll = true;
+        private final Matrix viewMatrix = new Matrix();
+        private final Matrix lastViewMatrix = new Matrix();
+        private final RectF screenDamage = new RectF();
+        private final Rect screenClip = new Rect();
+        // Where the soft cursor is on the screen, and where the last frame drew it
+        private final Rect cursorClip = new Rect();
+        private final Rect lastCursorClip = new Rect();
+        // What the last presented frame showed, a frame that would show the same is skipped
+        private boolean presented = false;
+        private final Matrix presentedMatrix = new Matrix();
+        private final RectF presentedCursorRect = new RectF();
+        private Bitmap presentedCursor;
+
+        private final Runnable scheduleFrame = new Runnable() {
+            @Override
+            public void run() {
+                if (choreographer == null) {
+                    // Choreographer is bound to the looper of the thread that asks for it
+                    choreographer = Choreographer.getInstance();
+                }
+                choreographer.postFrameCallback(DrawWorker.this);
+            }
+        };
+
         public DrawWorker() {
             showFps = Utils.querySharedPreferenceBoolean(getContext(),
                     Constants.enableDebugInfo, false);
+            partialFrames = Utils.querySharedPreferenceBoolean(getContext(),
+                    Constants.partialFramesTag, false);
 
-            thread = new Thread(this, "DrawWorker");
+            // use the highest priority to draw the frame to avoid micro stutter
+            thread = new HandlerThread("DrawWorker", android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
             thread.start();
+            handler = new Handler(thread.getLooper());
         }
 
         public void count() {
@@ -1819,74 +1910,412 @@ public class RemoteCanvas extends SurfaceView implements Viewable
             }
         }
 
-        public void addTask(DrawTask task) {
-            DrawTask lastTask = queue.peek();
-            if (lastTask != null
-                    && System.currentTimeMillis() - lastTask.getInTimeMs() < 10) {
+        public void addTask(int x, int y, int w, int h, boolean count, String debugMsg) {
+            addTask(x, y, w, h, count, debugMsg, true, false);
+        }
+
+        /**
+         * @param markDirty false if the tiles of the rect need no upload, because
+         *                  GlBitmapData has them copied within the texture
+         * @param local     true if only the client changed the rect, see DrawTask.setLocal()
+         */
+        void addTask(int x, int y, int w, int h, boolean count, String debugMsg, boolean markDirty,
+                     boolean local) {
+            AbstractBitmapData data = bitmapData;
+            if (markDirty && data instanceof FullBufferBitmapData) {
+                ((FullBufferBitmapData) data).tiles.markDirty(x, y, w, h);
+            }
+
+            ObjectPool.Entry<DrawTask> entry = taskPool.reserve();
+            DrawTask task = entry.get();
+            task.set(x, y, w, h, count);
+            task.setDebugMsg(debugMsg);
+            task.setLocal(local);
+
+            boolean queued = false;
+            synchronized (ring) {
+                if (ringSize < RING_SIZE) {
+                    ring[(ringHead + ringSize) % RING_SIZE] = entry;
+                    ringSize++;
+                    queued = true;
+                }
+            }
+
+            if (!queued) {
+                // The ring is full, the next frame redraws this area anyway
+                collectDamage(task);
+                if (count && isShowFps()) {
+                    fpsCounter.count();
+                }
+                taskPool.release(entry);
+            }
+
+            requestFrame();
+        }
+
+        /**
+         * Asks for a frame that redraws the whole view, e.g. after panning or zooming,
+         * without marking any of the framebuffer as changed.
+         */
+        public void invalidateView() {
+            viewInvalidated.set(true);
+            requestFrame();
+        }
+
+        private void requestFrame() {
+            // Only the first request after a frame asks for the next vsync, the rest is merged
+            if (frameScheduled.compareAndSet(false, true)) {
+                handler.post(scheduleFrame);
+            }
+        }
+
+        /**
+         * Disconnects the GL renderer from the surface, which must happen before the
+         * surface is destroyed. A new renderer is created with the next frame.
+         */
+        public void releaseGl() {
+            final CountDownLatch released = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseGlRenderer();
+                    released.countDown();
+                }
+            });
+
+            try {
+                released.await(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private ObjectPool.Entry<DrawTask> pollTask() {
+            synchronized (ring) {
+                if (ringSize == 0) {
+                    return null;
+                }
+
+                ObjectPool.Entry<DrawTask> entry = ring[ringHead];
+                ring[ringHead] = null;
+                ringHead = (ringHead + 1) % RING_SIZE;
+                ringSize--;
+                return entry;
+            }
+        }
+
+        private void collectDamage(DrawTask task) {
+            // A local task only asks for a frame, the cursor clip of the frame covers it
+            if (task.isLocal()) {
                 return;
             }
+            Rect dirty = task.getDirtyRect();
+            synchronized (damage) {
+                damage.union(dirty);
+            }
+            // Without tiles the damage can't be narrowed down, so it is traced as it comes
+            if (latencyTracer != null && !(bitmapData instanceof FullBufferBitmapData)) {
+                latencyTracer.damaged(dirty.left, dirty.top, dirty.right, dirty.bottom);
+            }
+        }
 
-            queue.add(task);
+        /**
+         * Passes the tiles presented with the next frame to the latency tracer, a row
+         * of neighboring tiles at a time. Tiles repainted with the same content are left
+         * out, they are not the effect of an input event.
+         */
+        private void traceDamagedTiles(FramebufferTiles tiles) {
+            int columns = tiles.getColumns();
+            int rows = tiles.getRows();
+            for (int row = 0; row < rows; row++) {
+                int start = -1;
+                for (int column = 0; column <= columns; column++) {
+                    boolean damaged = column < columns && tiles.isDamaged(column, row);
+                    if (damaged && start < 0) {
+                        start = column;
+                    } else if (!damaged && start >= 0) {
+                        latencyTracer.damaged(start << FramebufferTiles.TILE_SHIFT,
+                                row << FramebufferTiles.TILE_SHIFT,
+                                column << FramebufferTiles.TILE_SHIFT,
+                                (row + 1) << FramebufferTiles.TILE_SHIFT);
+                        start = -1;
+                    }
+                }
+            }
         }
 
         @Override
-        public void run() {
-            // use the highest priority to draw the frame to avoid micro stutter
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+        public void doFrame(long frameTimeNanos) {
+            // Clear the flag before draining, a task queued from now on schedules another frame
+            frameScheduled.set(false);
 
-            while (true) {
-                Canvas canvas = null;
-                try {
-                    DrawTask task = queue.take();
+            long oldestInTimeMs = 0;
+            String debugMsg = null;
+            boolean hasUpdate = false;
+
+            ObjectPool.Entry<DrawTask> entry;
+            while ((entry = pollTask()) != null) {
+                DrawTask task = entry.get();
+                collectDamage(task);
+
+                if (oldestInTimeMs == 0) {
+                    oldestInTimeMs = task.getInTimeMs();
+                }
+                if (task.getDebugMsg() != null) {
+                    debugMsg = task.getDebugMsg();
+                }
 
-                    if (isShowFps() && task.isCount()) {
+                // when isCount is true, it means the update event comes from the real image update
+                if (task.isCount()) {
+                    hasUpdate = true;
+                    if (isShowFps()) {
                         fpsCounter.count();
                     }
+                }
 
-                    // prevent the pointer refresh event goes too fast
-                    if (task.getInTimeMs() - lastDraw < 13) {
-                        continue;
-                    }
+                taskPool.release(entry);
+            }
+
+            boolean viewChanged = viewInvalidated.getAndSet(false);
+            if (oldestInTimeMs == 0 && !viewChanged) {
+                return;
+            }
+
+            synchronized (damage) {
+                frameDamage.set(damage);
+                damage.setEmpty();
+            }
+            if (bitmapData instanceof FullBufferBitmapData) {
+                // Narrow the damage down to the tiles whose content really changed
+                FullBufferBitmapData data = (FullBufferBitmapData) bitmapData;
+                data.tiles.collectChanged(data.bitmapPixels, frameDamage);
+                if (latencyTracer != null && !frameDamage.isEmpty()) {
+                    traceDamagedTiles(data.tiles);
+                }
+            }
 
-                    // when isCount is true, it means the update event comes from the real image update
-                    if (System.currentTimeMillis() - task.getInTimeMs() > 16 && task.isCount()) {
-                        // drop frame, lagging
-                        fpsCounter.finish(task.getInTimeMs());
-                        fpsCounter.frameDrop();
+            // The update waited for more than one refresh before it could be presented
+            long waitedNs = (System.currentTimeMillis() - oldestInTimeMs) * 1000000L;
+            if (hasUpdate && isShowFps() && waitedNs > 2 * getFrameIntervalNanos()) {
+                fpsCounter.frameDrop();
+            }
+
+            if (bitmapData == null || scaler == null) {
+                return;
+            }
+            long presentStartNs = decodeStats != null ? System.nanoTime() : 0;
+            viewMatrix.set(scaler.getMatrix());
+            viewMatrix.preTranslate(-absoluteXPosition, -absoluteYPosition);
+
+            if (isFrameUnchanged(viewChanged)) {
+                // The tiles were all repainted with the same content, the surface already
+                // shows this frame
+                return;
+            }
+            presented = false;
+
+            if (bitmapData instanceof GlBitmapData && !glFailed) {
+                if (drawGlFrame((GlBitmapData) bitmapData)) {
+                    framePresented();
+                    if (fpsCounter != null && oldestInTimeMs != 0) {
+                        fpsCounter.finish(oldestInTimeMs);
+                    }
+                    if (decodeStats != null) {
+                        decodeStats.framePresented(System.nanoTime() - presentStartNs);
+                    }
+                    if (latencyTracer != null) {
+                        latencyTracer.framePresented();
                     }
+                    lastDraw = System.currentTimeMillis();
+                    return;
+                }
+                if (!glFailed) {
+                    // There is no surface right now, locking a canvas on it would keep GL
+                    // from connecting later. The next renderer uploads everything.
+                    releaseGlRenderer();
+                    return;
+                }
+                // The texture may have missed damage, the canvas path draws everything
+                redrawAll = true;
+            }
 
+            Canvas canvas = null;
+            try {
+                if (partialFrames) {
+                    // The surface may widen the dirty rect, e.g. when it has no earlier frame
+                    // to keep, and clips the canvas to it
+                    canvas = surfaceHolder.lockCanvas(frameDirtyRect(viewChanged));
+                } else {
                     canvas = surfaceHolder.lockHardwareCanvas();
-                    canvas.setMatrix(scaler.getMatrix());
-                    canvas.translate((-absoluteXPosition), (-absoluteYPosition));
-
-                    canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                }
+                if (canvas == null) {
+                    redrawAll = true;
+                    return;
+                }
 
-                    bitmapData.drawable.draw(canvas);
+                canvas.setMatrix(viewMatrix);
+                canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                bitmapData.drawable.drawFramebuffer(canvas);
+                bitmapData.drawable.drawSoftCursor(canvas);
 
-                    if (fpsCounter != null && task != null) {
-                        fpsCounter.finish(task.getInTimeMs());
+                if (fpsCounter != null && oldestInTimeMs != 0) {
+                    fpsCounter.finish(oldestInTimeMs);
 
-                        if (showFps) {
-                            fpsCounter.drawFps(canvas);
-                            fpsCounter.drawDebugMsg(canvas, task.getDebugMsg());
+                    if (showFps) {
+                        fpsCounter.drawFps(canvas);
+                        if (decodeStats != null) {
+                            String stats = latencyTracer.getSummary() + "\n" + decodeStats.getOverlayText();
+                            debugMsg = debugMsg != null ? stats + "\n" + debugMsg : stats;
                         }
+                        fpsCounter.drawDebugMsg(canvas, debugMsg);
                     }
+                }
 
-                    lastDraw = System.currentTimeMillis();
-                } catch (Exception e) {
-
-                } finally {
-                    if (canvas != null) {
-                        surfaceHolder.unlockCanvasAndPost(canvas);
+                lastDraw = System.currentTimeMillis();
+                framePresented();
+            } catch (Exception e) {
+                // The damage of this frame may not have made it to the surface
+                redrawAll = true;
+            } finally {
+                if (canvas != null) {
+                    surfaceHolder.unlockCanvasAndPost(canvas);
+                    if (decodeStats != null) {
+                        decodeStats.framePresented(System.nanoTime() - presentStartNs);
                     }
+                    if (latencyTracer != null) {
+                        latencyTracer.framePresented();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Uploads the damage to the framebuffer texture and presents it with the current
+         * view transform.
+         * @return false if GL is not usable, and the frame has to go through the canvas.
+         */
+        private boolean drawGlFrame(GlBitmapData data) {
+            Surface surface = surfaceHolder.getSurface();
+            if (surface == null || !surface.isValid()) {
+                return false;
+            }
+
+            if (glRenderer == null) {
+                glRenderer = new GlFramebufferRenderer();
+                if (!glRenderer.init(surface)) {
+                    glRenderer = null;
+                    glFailed = true;
+                    return false;
                 }
             }
+
+            Rect frame = surfaceHolder.getSurfaceFrame();
+            if (!glRenderer.upload(data)) {
+                Log.w(TAG, "Framebuffer too large for a texture, drawing with canvas");
+                glFailed = true;
+                releaseGlRenderer();
+                return false;
+            }
+            if (!glRenderer.draw(viewMatrix, data.drawable, frame.width(), frame.height())) {
+                // Most likely the surface went away, start over with the next frame
+                releaseGlRenderer();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return whether this frame would show the same as the last one presented: the
+         * tiles found no damage left, and neither the view nor the soft cursor changed.
+         */
+        private boolean isFrameUnchanged(boolean viewChanged) {
+            if (!presented || viewChanged || !frameDamage.isEmpty()
+                    || !(bitmapData instanceof FullBufferBitmapData)) {
+                return false;
+            }
+            AbstractBitmapDrawable drawable = bitmapData.drawable;
+            return viewMatrix.equals(presentedMatrix) && drawable.softCursor == presentedCursor
+                    && presentedCursorRect.equals(drawable.cursorRect);
+        }
+
+        private void framePresented() {
+            AbstractBitmapDrawable drawable = bitmapData.drawable;
+            presentedMatrix.set(viewMatrix);
+            presentedCursor = drawable.softCursor;
+            if (drawable.cursorRect != null) {
+                presentedCursorRect.set(drawable.cursorRect);
+            } else {
+                presentedCursorRect.setEmpty();
+            }
+            presented = true;
+        }
+
+        private void releaseGlRenderer() {
+            if (glRenderer != null) {
+                glRenderer.release();
+                glRenderer = null;
+            }
+        }
+
+        private long getFrameIntervalNanos() {
+            Display display = getDisplay();
+            if (display == null || display.getRefreshRate() <= 0) {
+                return DEFAULT_FRAME_INTERVAL_NS;
+            }
+
+            return (long) (1000000000L / display.getRefreshRate());
+        }
+
+        /**
+         * Works out the area of the surface this frame has to redraw: the damage and the
+         * soft cursor, as the view shows them.
+         * @return null to redraw the whole surface, which is the case when panning or
+         * zooming, when most of the screen is damaged, or when the debug overlay is shown.
+         */
+        private Rect frameDirtyRect(boolean viewChanged) {
+            boolean transformChanged = viewChanged || !viewMatrix.equals(lastViewMatrix);
+            lastViewMatrix.set(viewMatrix);
+
+            cursorClip.setEmpty();
+            RectF cursorRect = bitmapData.drawable.cursorRect;
+            if (cursorRect != null) {
+                screenDamage.set(cursorRect);
+                viewMatrix.mapRect(screenDamage);
+                screenDamage.roundOut(cursorClip);
+                cursorClip.inset(-2, -2);
+            }
+
+            screenClip.setEmpty();
+            if (!frameDamage.isEmpty()) {
+                screenDamage.set(frameDamage);
+                viewMatrix.mapRect(screenDamage);
+                screenDamage.roundOut(screenClip);
+                // Bitmap filtering samples neighbouring pixels, so grow the area a little.
+                screenClip.inset(-2, -2);
+            }
+            screenClip.union(cursorClip);
+            screenClip.union(lastCursorClip);
+            lastCursorClip.set(cursorClip);
+
+            Rect frame = surfaceHolder.getSurfaceFrame();
+            boolean all = redrawAll || transformChanged || showFps
+                    || screenClip.width() * screenClip.height() > frame.width() * frame.height() / 2;
+            redrawAll = false;
+            return all ? null : screenClip;
         }
 
         public long getLastDraw() {
             return lastDraw;
         }
 
+        /**
+         * @return whether the surface is locked for software drawing rather than hardware
+         * drawing, which anything else drawing on it has to follow.
+         */
+        boolean isPartialFrames() {
+            return partialFrames;
+        }
+
         public boolean isShowFps() {
             return fpsCounter != null;
         }
@@ -1896,10 +2325,10 @@ public class RemoteCanvas extends SurfaceView implements Viewable
      * Causes a redraw of the myDrawable to happen at the indicated coordinates.
      */
     public void reDraw(int x, int y, int w, int h) {
-        reDraw(new DrawTask(x, y, w, h));
+        reDraw(x, y, w, h, false, null);
     }
 
-    public void reDraw(DrawTask drawTask) {
+    public void reDraw(int x, int y, int w, int h, boolean count, String debugMsg) {
         if (progressDialog != null && progressDialog.isShowing()) {
             progressDialog.dismiss();
         }
@@ -1909,7 +2338,38 @@ public class RemoteCanvas extends SurfaceView implements Viewable
 //        float shiftedX = x - shiftX;
 //        float shiftedY = y - shiftY;
 
-        drawWorker.addTask(drawTask);
+        drawWorker.addTask(x, y, w, h, count, debugMsg);
+    }
+
+    /**
+     * Like reDraw(), for a rect that GlBitmapData copied within its texture.
+     */
+    void reDrawCopied(int x, int y, int w, int h) {
+        if (progressDialog != null && progressDialog.isShowing()) {
+            progressDialog.dismiss();
+        }
+        drawWorker.addTask(x, y, w, h, false, null, false, false);
+    }
+
+    /**
+     * Like reDraw(), for a rect that changed on the client alone, like the soft cursor
+     * moved along with the local pointer. It is not taken as the effect of an input event.
+     */
+    void reDrawLocal(float x, float y, float w, float h) {
+        if (progressDialog != null && progressDialog.isShowing()) {
+            progressDialog.dismiss();
+        }
+        drawWorker.addTask((int) x, (int) y, (int) w, (int) h, false, null, false, true);
+    }
+
+    /**
+     * Redraws the whole view after its transform changed, without any of the remote
+     * framebuffer having changed.
+     */
+    public void invalidateView() {
+        if (drawWorker != null) {
+            drawWorker.invalidateView();
+        }
     }
 
     /**
@@ -1958,7 +2418,7 @@ public class RemoteCanvas extends SurfaceView implements Viewable
             // add little offset for the cursor image
             bitmapData.moveCursorRect(pointer.getX() - pointer.getHotspotX(), pointer.getY() - pointer.getHotspotY());
             RectF r = bitmapData.getCursorRect();
-            reDraw(r.left, r.top, r.width(), r.height());
+            reDrawLocal(r.left, r.top, r.width(), r.height());
         }
     }
 
@@ -2331,6 +2791,13 @@ public class RemoteCanvas extends SurfaceView implements Viewable
         return fpsCounter;
     }
 
+    /**
+     * @return the decode stats of the session, null unless the debug info is shown.
+     */
+    public DecodeStats getDecodeStats() {
+        return decodeStats;
+    }
+
     @Override
     public boolean onCheckIsTextEditor() {
         // ★★★ 核心1：返回true，告诉系统「我这个View是文本编辑器」，具备输入能力
@@ -2348,7 +2815,12 @@ public class RemoteCanvas extends SurfaceView implements Viewable
 
         Canvas canvas = null;
         try {
-            canvas = surfaceHolder.lockHardwareCanvas();
+            // Locked the way the frames lock the surface, which can't be locked both ways
+            if (drawWorker != null && drawWorker.isPartialFrames()) {
+                canvas = surfaceHolder.lockCanvas();
+            } else {
+                canvas = surfaceHolder.lockHardwareCanvas();
+            }
             if (canvas != null) {
                 synchronized (surfaceHolder) {
                     String text = getContext().getString(R.string.use_as_touchpad);
@@ -26,8 +26,12 @@ package com.qihua.bVNC;
 import android.util.Log;
 
 import com.qihua.bVNC.input.RemoteVncKeyboard;
+import com.tigervnc.rdr.CaptureInStream;
 import com.tigervnc.rdr.InStream;
+import com.tigervnc.rdr.NioOutStream;
+import com.tigervnc.rdr.NioTransport;
 import com.tigervnc.rdr.OutStream;
+import com.tigervnc.rdr.PipelinedInStream;
 import com.tigervnc.rdr.RawInStream;
 import com.tigervnc.rdr.RawOutStream;
 import com.tigervnc.rfb.AuthFailureException;
@@ -37,8 +41,15 @@ import com.undatech.opaque.input.RemoteKeyboard;
 import com.undatech.opaque.util.GeneralUtils;
 import com.qihua.bVNC.R;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 import javax.net.ssl.SSLSocket;
 
@@ -126,7 +137,9 @@ public class RfbProto extends RfbConnectable {
             SetColourMapEntries = 1,
             Bell = 2,
             ServerCutText = 3,
-            TextChat = 11;
+            TextChat = 11,
+            EndOfContinuousUpdates = 150,
+            ServerFence = 248;
     // Client-to-server messages
     final static int
             SetPixelFormat = 0,
@@ -135,7 +148,9 @@ public class RfbProto extends RfbConnectable {
             FramebufferUpdateRequest = 3,
             KeyboardEvent = 4,
             PointerEvent = 5,
-            ClientCutText = 6;
+            ClientCutText = 6,
+            EnableContinuousUpdates = 150,
+            ClientFence = 248;
     // Supported encodings and pseudo-encodings
     final static int
             EncodingRaw = 0,
@@ -165,7 +180,10 @@ public class RfbProto extends RfbConnectable {
             EncodingLastRect = -224,
             EncodingNewFBSize = -223,
             EncodingClientRedirect = -311,
-            EncodingExtendedDesktopSize = -308;
+            EncodingExtendedDesktopSize = -308,
+            EncodingFence = -312,
+            EncodingContinuousUpdates = -313,
+            EncodingExtendedClipboard = 0xC0A1E5CE;
     final static String
             SigEncodingRaw = "RAW_____",
             SigEncodingCopyRect = "COPYRECT",
@@ -201,6 +219,14 @@ public class RfbProto extends RfbConnectable {
             TightFilterCopy = 0x00,
             TightFilterPalette = 0x01,
             TightFilterGradient = 0x02;
+    // Fence flags
+    final static int
+            FenceFlagBlockBefore = 1 << 0,
+            FenceFlagBlockAfter = 1 << 1,
+            FenceFlagSyncNext = 1 << 2,
+            FenceFlagRequest = 1 << 31,
+            FenceFlagsSupported = FenceFlagBlockBefore | FenceFlagBlockAfter | FenceFlagRequest;
+    final static int FenceMaxPayload = 64;
     // Constants used for UltraVNC chat extension
     final static int
             CHAT_OPEN = -1,
@@ -229,6 +255,36 @@ public class RfbProto extends RfbConnectable {
     InStream is;
     OutStream os;
 
+    // Reads the socket on its own thread so that receiving overlaps with decoding,
+    // null unless pipelined decoding is enabled.
+    private PipelinedInStream pipelinedInStream;
+    private boolean pipelined;
+    // Takes over the socket after the handshake, null unless the NIO transport is enabled
+    private NioTransport nioTransport;
+    private boolean useNio;
+    // Set when TLS runs on top of sock, which then can't be used directly
+    private boolean tlsLayered = false;
+    // Takes over the clipboard once the server announces the Extended Clipboard extension
+    private final ExtendedClipboard extendedClipboard = new ExtendedClipboard(this);
+    // Records what the server sends for replay, null unless session capture is enabled.
+    private CaptureInStream captureInStream;
+    // Null unless the debug info is shown
+    private DecodeStats decodeStats;
+    // Writes to the server on its own thread, null unless input batching is enabled
+    private BatchingOutStream batchingOutStream;
+    // Button mask of the last pointer event, a pointer event with the same one is a move
+    private int lastPointerMask = 0;
+
+    // Set when the server has announced the ContinuousUpdates and Fence extensions.
+    // With continuous updates active the server streams updates without a
+    // FramebufferUpdateRequest for each of them.
+    private boolean supportsContinuousUpdates = false;
+    private boolean continuousUpdatesActive = false;
+    // A disable was sent, continuous updates stay active until EndOfContinuousUpdates
+    private boolean continuousUpdatesStopping = false;
+    private boolean supportsFence = false;
+    private byte[] fencePayload = new byte[FenceMaxPayload];
+
     // Before starting to record each saved session, we set this field
     // to 0, and increment on each framebuffer update. We don't flush
     // the SessionRecorder data into the file before the second update.
@@ -253,10 +309,12 @@ public class RfbProto extends RfbConnectable {
     // sessions only once per each saved session file.
     boolean zlibWarningShown;
     boolean tightWarningShown;
-    // Measuring network throughput.
-    boolean timing;
-    long timeWaitedIn100us;
-    long timedKbits;
+    // Measuring network throughput and round-trip time to adapt the encoding,
+    // null if the encoding is left as configured.
+    private EncodingController encodingController;
+    private RawInStream rawInStream;
+    private long lastRttProbeMs = 0;
+    private boolean rttProbePending = false;
     // Protocol version and TightVNC-specific protocol options.
     int serverMajor, serverMinor;
 
@@ -345,9 +403,13 @@ public class RfbProto extends RfbConnectable {
         this.hashAlgorithm = hashAlgorithm;
         this.hash = hash;
         this.cert = cert;
-        timing = false;
-        timeWaitedIn100us = 5;
-        timedKbits = 0;
+        pipelined = Utils.querySharedPreferenceBoolean(canvas.getContext(),
+                Constants.pipelinedDecodingTag, false);
+        useNio = Utils.querySharedPreferenceBoolean(canvas.getContext(),
+                Constants.nioTransportTag, false);
+        if (Utils.querySharedPreferenceBoolean(canvas.getContext(), Constants.adaptiveEncodingTag, true)) {
+            encodingController = new EncodingController(preferredEncoding);
+        }
         modifierMap.put(RemoteKeyboard.CTRL_MASK, XK_LCTRL);
         modifierMap.put(RemoteKeyboard.RCTRL_MASK, XK_RCTRL);
         modifierMap.put(RemoteKeyboard.ALT_MASK, XK_LALT);
@@ -387,9 +449,15 @@ public class RfbProto extends RfbConnectable {
 
 
         if (sock == null) {
-            sock = new Socket(host, port);
+            if (useNio) {
+                // Blocking for the handshake, the NIO transport takes the channel over later
+                sock = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            } else {
+                sock = new Socket(host, port);
+            }
             sock.setTcpNoDelay(true);
         }
+        tlsLayered = false;
 
         this.sock = sock;
         setStreams(new RawInStream(sock.getInputStream()), new RawOutStream(sock.getOutputStream()));
@@ -401,6 +469,15 @@ public class RfbProto extends RfbConnectable {
             if (sock != null) {
                 sock.close();
             }
+            if (pipelinedInStream != null) {
+                pipelinedInStream.close();
+            }
+            if (nioTransport != null) {
+                nioTransport.close();
+            }
+            if (batchingOutStream != null) {
+                batchingOutStream.close();
+            }
             closed = true;
             Log.v(TAG, "RFB socket closed");
         } catch (Exception e) {
@@ -834,6 +911,7 @@ public class RfbProto extends RfbConnectable {
     void authenticateTLS() throws Exception {
         TLSTunnel tunnel = new TLSTunnel(sock);
         SSLSocket sslsock = tunnel.setup();
+        tlsLayered = true;
         setStreams(new RawInStream(sslsock.getInputStream()), new RawOutStream(sslsock.getOutputStream()));
     }
 
@@ -844,6 +922,7 @@ public class RfbProto extends RfbConnectable {
     void authenticateX509(String certstr) throws Exception {
         X509Tunnel tunnel = new X509Tunnel(sock, certstr, canvas.handler, this);
         SSLSocket sslsock = tunnel.setup();
+        tlsLayered = true;
         setStreams(new RawInStream(sslsock.getInputStream()), new RawOutStream(sslsock.getOutputStream()));
     }
 
@@ -1285,11 +1364,37 @@ public class RfbProto extends RfbConnectable {
         byte[] pad = new byte[3];
         readFully(pad);
         int len = is.readInt();
+        if (len < 0) {
+            // A negative length marks an Extended Clipboard message
+            len = -len;
+            if (len < 0 || len > ExtendedClipboard.MAX_MESSAGE) {
+                Log.w(TAG, "Skipping extended clipboard message of " + (len & 0xffffffffL) + " bytes");
+                skipFully(len & 0xffffffffL);
+                return null;
+            }
+            byte[] payload = new byte[len];
+            readFully(payload);
+            return extendedClipboard.handleMessage(payload);
+        }
+        if (len > ExtendedClipboard.MAX_TEXT) {
+            Log.w(TAG, "Skipping " + len + " bytes of clipboard text");
+            skipFully(len);
+            return null;
+        }
         byte[] text = new byte[len];
         readFully(text);
         return new String(text);
     }
 
+    private void skipFully(long len) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(len, 64 * 1024)];
+        while (len > 0) {
+            int n = (int) Math.min(len, buffer.length);
+            readFully(buffer, 0, n);
+            len -= n;
+        }
+    }
+
 
     //
     // Write a FramebufferUpdateRequest message
@@ -1340,6 +1445,46 @@ public class RfbProto extends RfbConnectable {
     }
 
 
+    //
+    // Write an EnableContinuousUpdates message for the whole framebuffer
+    //
+
+    synchronized void writeEnableContinuousUpdates(boolean enable) throws IOException {
+        byte[] b = new byte[10];
+
+        b[0] = (byte) EnableContinuousUpdates;
+        b[1] = (byte) (enable ? 1 : 0);
+        b[6] = (byte) ((framebufferWidth >> 8) & 0xff);
+        b[7] = (byte) (framebufferWidth & 0xff);
+        b[8] = (byte) ((framebufferHeight >> 8) & 0xff);
+        b[9] = (byte) (framebufferHeight & 0xff);
+
+        os.write(b);
+        if (enable) {
+            continuousUpdatesActive = true;
+        } else {
+            continuousUpdatesStopping = true;
+        }
+    }
+
+    //
+    // Write a ClientFence message
+    //
+
+    synchronized void writeFence(int flags, byte[] payload, int len) throws IOException {
+        byte[] b = new byte[9 + len];
+
+        b[0] = (byte) ClientFence;
+        b[4] = (byte) ((flags >> 24) & 0xff);
+        b[5] = (byte) ((flags >> 16) & 0xff);
+        b[6] = (byte) ((flags >> 8) & 0xff);
+        b[7] = (byte) (flags & 0xff);
+        b[8] = (byte) len;
+        System.arraycopy(payload, 0, b, 9, len);
+
+        os.write(b);
+    }
+
     //
     // Write a SetPixelFormat message
     //
@@ -1430,19 +1575,31 @@ public class RfbProto extends RfbConnectable {
     // Write a ClientCutText message
     //
 
-    synchronized void writeClientCutText(String text, int length) throws IOException {
+    synchronized void writeClientCutText(byte[] text) throws IOException {
+        writeCutText(text, text.length);
+    }
+
+    //
+    // Write a ClientCutText message of the Extended Clipboard extension
+    //
+
+    synchronized void writeExtendedClipboard(byte[] payload) throws IOException {
         if (viewOnly)
             return;
 
-        byte[] b = new byte[8 + length];
+        writeCutText(payload, -payload.length);
+    }
+
+    private void writeCutText(byte[] data, int length) throws IOException {
+        byte[] b = new byte[8 + data.length];
 
         b[0] = (byte) ClientCutText;
-        b[4] = (byte) ((text.length() >> 24) & 0xff);
-        b[5] = (byte) ((text.length() >> 16) & 0xff);
-        b[6] = (byte) ((text.length() >> 8) & 0xff);
-        b[7] = (byte) (text.length() & 0xff);
+        b[4] = (byte) ((length >> 24) & 0xff);
+        b[5] = (byte) ((length >> 16) & 0xff);
+        b[6] = (byte) ((length >> 8) & 0xff);
+        b[7] = (byte) (length & 0xff);
 
-        System.arraycopy(text.getBytes(), 0, b, 8, length);
+        System.arraycopy(data, 0, b, 8, data.length);
 
         os.write(b);
     }
@@ -1474,6 +1631,7 @@ public class RfbProto extends RfbConnectable {
         eventBufLen = 0;
         writeModifierKeyEvents(modifiers, true);
 
+        int pointerAt = eventBufLen;
         eventBuf[eventBufLen++] = (byte) PointerEvent;
         eventBuf[eventBufLen++] = (byte) pointerMask;
         eventBuf[eventBufLen++] = (byte) ((x >> 8) & 0xff);
@@ -1490,7 +1648,14 @@ public class RfbProto extends RfbConnectable {
         }
 
         try {
-            os.write(eventBuf, 0, eventBufLen);
+            if (batchingOutStream != null) {
+                batchingOutStream.writePointerEvent(eventBuf, eventBufLen, pointerAt,
+                        pointerMask == lastPointerMask);
+            } else {
+                os.write(eventBuf, 0, eventBufLen);
+            }
+            lastPointerMask = pointerMask;
+            traceInput(x, y);
         } catch (IOException e) {
             Log.e(TAG, "Failed to write pointer event to VNC server.");
             e.printStackTrace();
@@ -1543,7 +1708,12 @@ public class RfbProto extends RfbConnectable {
         }
 
         try {
-            os.write(eventBuf, 0, eventBufLen);
+            if (batchingOutStream != null) {
+                batchingOutStream.writeKeyEvents(eventBuf, eventBufLen);
+            } else {
+                os.write(eventBuf, 0, eventBufLen);
+            }
+            traceInput();
         } catch (IOException e) {
             Log.e(TAG, "Failed to write key event to VNC server.");
             e.printStackTrace();
@@ -1613,70 +1783,12 @@ public class RfbProto extends RfbConnectable {
         }
     }
 
-    public void startTiming() {
-        timing = true;
-
-        // Carry over up to 1s worth of previous rate for smoothing.
-
-        if (timeWaitedIn100us > 10000) {
-            timedKbits = timedKbits * 10000 / timeWaitedIn100us;
-            timeWaitedIn100us = 10000;
-        }
-    }
-
-    //
-    // Write key events to set the correct modifier state.
-    //
-
-    public void stopTiming() {
-        timing = false;
-        if (timeWaitedIn100us < timedKbits / 2)
-            timeWaitedIn100us = timedKbits / 2; // upper limit 20Mbit/s
-    }
-    //
-    // Compress and write the data into the recorded session file. This
-    // method assumes the recording is on (rec != null).
-    //
-
-    public long kbitsPerSecond() {
-        return timedKbits * 10000 / timeWaitedIn100us;
-    }
-
-    public long timeWaited() {
-        return timeWaitedIn100us;
-    }
-
     public void readFully(byte b[]) throws IOException {
         readFully(b, 0, b.length);
     }
 
     public void readFully(byte b[], int off, int len) throws IOException {
-        // TODO: Try reenabling timing and set color according to bandwidth
-    /*
-    long before = 0;
-    timing = false; // for test
-
-    if (timing)
-      before = System.currentTimeMillis();
-     */
-
         is.readBytes(b, off, len);
-
-    /*
-    if (timing) {
-      long after = System.currentTimeMillis();
-      long newTimeWaited = (after - before) * 10;
-      int newKbits = len * 8 / 1000;
-
-      // limit rate to between 10kbit/s and 40Mbit/s
-
-      if (newTimeWaited > newKbits*1000) newTimeWaited = newKbits*1000;
-      if (newTimeWaited < newKbits/4)    newTimeWaited = newKbits/4;
-
-      timeWaitedIn100us += newTimeWaited;
-      timedKbits += newKbits;
-    }
-    */
     }
 
     final int readU8() throws IOException {
@@ -1722,6 +1834,10 @@ public class RfbProto extends RfbConnectable {
         Log.d(TAG, "setStreams");
         is = is_;
         os = os_;
+        // Wrapping streams read through the raw one, which counts the received bytes
+        if (is_ instanceof RawInStream) {
+            rawInStream = (RawInStream) is_;
+        }
     }
 
     synchronized void writeOpenChat() throws Exception {
@@ -1815,8 +1931,21 @@ public class RfbProto extends RfbConnectable {
 
     @Override
     public void writeClientCutText(String text) {
+        if (viewOnly)
+            return;
+
         try {
-            writeClientCutText(text, text.length());
+            if (extendedClipboard.isActive()) {
+                // The server fetches the text if it needs it
+                extendedClipboard.clientClipboardChanged(text);
+                return;
+            }
+            byte[] bytes = text.getBytes();
+            if (bytes.length > ExtendedClipboard.MAX_TEXT) {
+                Log.w(TAG, "Not sending " + bytes.length + " bytes of clipboard text");
+                return;
+            }
+            writeClientCutText(bytes);
         } catch (IOException e) {
             Log.e(TAG, "Could not write text to VNC server clipboard.");
             e.printStackTrace();
@@ -1862,7 +1991,13 @@ public class RfbProto extends RfbConnectable {
         int[] encodings = new int[20];
         int nEncodings = 0;
 
-        encodings[nEncodings++] = preferredEncoding;
+        if (encodingController != null) {
+            compressLevel = encodingController.getCompressLevel();
+            jpegQuality = encodingController.getJpegQuality();
+            encodings[nEncodings++] = encodingController.getPreferredEncoding();
+        } else {
+            encodings[nEncodings++] = preferredEncoding;
+        }
         encodings[nEncodings++] = RfbProto.EncodingTight;
         encodings[nEncodings++] = RfbProto.EncodingZRLE;
         encodings[nEncodings++] = RfbProto.EncodingHextile;
@@ -1882,6 +2017,9 @@ public class RfbProto extends RfbConnectable {
         encodings[nEncodings++] = RfbProto.EncodingLastRect;
         encodings[nEncodings++] = RfbProto.EncodingNewFBSize;
         encodings[nEncodings++] = RfbProto.EncodingExtendedDesktopSize;
+        encodings[nEncodings++] = RfbProto.EncodingFence;
+        encodings[nEncodings++] = RfbProto.EncodingContinuousUpdates;
+        encodings[nEncodings++] = RfbProto.EncodingExtendedClipboard;
 
         // TODO: Disabling ClientRedirect encoding for now because of
         // it being reserved for CursorWithAlpha by RealVNC and for
@@ -1917,6 +2055,37 @@ public class RfbProto extends RfbConnectable {
         int msgType = 0;
 
         try {
+            // The server announces the Extended Clipboard again on every connection
+            extendedClipboard.reset();
+
+            // Only plain sockets can be read ahead, the RA2 streams keep cipher state
+            if (useNio && is instanceof RawInStream && !tlsLayered && sock.getChannel() != null) {
+                // The transport reads ahead on its I/O thread just like pipelining does
+                nioTransport = new NioTransport(sock.getChannel());
+                pipelinedInStream = nioTransport.getInStream();
+                setStreams(pipelinedInStream, nioTransport.getOutStream());
+            } else if (pipelined && is instanceof RawInStream) {
+                pipelinedInStream = new PipelinedInStream((RawInStream) is);
+                setStreams(pipelinedInStream, os);
+            } else {
+                pipelined = false;
+            }
+
+            if (Utils.querySharedPreferenceBoolean(canvas.getContext(), Constants.captureSessionTag, false)) {
+                startCapture();
+            }
+
+            if ((os instanceof RawOutStream || os instanceof NioOutStream)
+                    && Utils.querySharedPreferenceBoolean(canvas.getContext(), Constants.batchInputTag, true)) {
+                batchingOutStream = new BatchingOutStream(os, modifierMap.values());
+                setStreams(is, batchingOutStream);
+            }
+
+            decodeStats = canvas.getDecodeStats();
+            if (decodeStats != null && pipelinedInStream == null && rawInStream != null) {
+                rawInStream.setTimeReads(true);
+            }
+
             setEncodings();
             canvas.writeFullUpdateRequest(false);
 
@@ -1938,10 +2107,44 @@ public class RfbProto extends RfbConnectable {
                 switch (msgType) {
                     case RfbProto.FramebufferUpdate:
                         readFramebufferUpdate();
+                        int oldWidth = framebufferWidth;
+                        int oldHeight = framebufferHeight;
+                        long updateStartBytes = bytesReceived();
+                        long updateStartNs = System.nanoTime();
+                        long updateStartConsumed = 0, updateStartWaitNs = 0;
+                        if (decodeStats != null) {
+                            updateStartConsumed = bytesConsumed();
+                            updateStartWaitNs = waitNs();
+                        }
+
+                        if (pipelined && !continuousUpdatesActive && !decoder.isChangedColorModel()) {
+                            // Request the next update right away, the server encodes it
+                            // while this one is still being received and decoded.
+                            canvas.writeFullUpdateRequest(true);
+                        }
 
                         for (int i = 0; i < updateNRects; i++) {
+                            long rectStartConsumed = 0, rectStartWaitNs = 0;
+                            if (decodeStats != null) {
+                                rectStartConsumed = bytesConsumed();
+                                rectStartWaitNs = waitNs();
+                            }
                             readFramebufferUpdateRectHdr();
 
+                            // Only Tight and ZRLE rects may be decoded in parallel, anything
+                            // else waits until the rects before it are in the framebuffer.
+                            if (updateRectEncoding != RfbProto.EncodingTight
+                                    && updateRectEncoding != RfbProto.EncodingTightZstd
+                                    && updateRectEncoding != RfbProto.EncodingZRLE) {
+                                decoder.flush();
+                            }
+
+                            long handlerStartNs = 0, handlerStartWaitNs = 0;
+                            if (decodeStats != null) {
+                                handlerStartNs = System.nanoTime();
+                                handlerStartWaitNs = waitNs();
+                            }
+
                             switch (updateRectEncoding) {
                                 case RfbProto.EncodingTight:
                                     decoder.handleTightRect(this, updateRectX, updateRectY, updateRectW, updateRectH, false);
@@ -1998,17 +2201,49 @@ public class RfbProto extends RfbConnectable {
                                             " (0x" + Integer.toHexString(updateRectEncoding) + ")");
                             }
 
+                            if (decodeStats != null) {
+                                long rectWaitNs = waitNs();
+                                decodeStats.rectReceived(updateRectEncoding, bytesConsumed() - rectStartConsumed,
+                                        rectWaitNs - rectStartWaitNs);
+                                if (!DecodeStats.isTimedByDecoder(updateRectEncoding)) {
+                                    // These are decoded while they are read, without the waits
+                                    decodeStats.rectDecoded(updateRectEncoding, 0,
+                                            System.nanoTime() - handlerStartNs - (rectWaitNs - handlerStartWaitNs));
+                                }
+                            }
+
                             if (exitforloop) {
                                 exitforloop = false;
                                 break;
                             }
                         }
 
-                        if (decoder.isChangedColorModel()) {
+                        decoder.flush();
+                        if (decodeStats != null) {
+                            decodeStats.updateReceived(bytesConsumed() - updateStartConsumed,
+                                    waitNs() - updateStartWaitNs, System.nanoTime() - updateStartNs);
+                        }
+                        if (encodingController != null && (rawInStream != null || nioTransport != null)) {
+                            adaptEncoding(bytesReceived() - updateStartBytes,
+                                    System.nanoTime() - updateStartNs);
+                        }
+
+                        if (continuousUpdatesActive) {
+                            if (decoder.isChangedColorModel()) {
+                                // Updates already on the way use the old format, stop them and
+                                // switch once the server confirms with EndOfContinuousUpdates.
+                                if (!continuousUpdatesStopping) {
+                                    writeEnableContinuousUpdates(false);
+                                }
+                            } else if (oldWidth != framebufferWidth || oldHeight != framebufferHeight) {
+                                writeEnableContinuousUpdates(true);
+                            }
+                        } else if (decoder.isChangedColorModel()) {
+                            stopCapture();
                             decoder.setPixelFormat(this);
                             //setEncodings();
                             canvas.writeFullUpdateRequest(false);
-                        } else {
+                        } else if (!pipelined) {
                             //setEncodings();
                             canvas.writeFullUpdateRequest(true);
                         }
@@ -2017,12 +2252,23 @@ public class RfbProto extends RfbConnectable {
                     case RfbProto.SetColourMapEntries:
                         throw new Exception("Can't handle SetColourMapEntries message");
 
+                    case RfbProto.EndOfContinuousUpdates:
+                        handleEndOfContinuousUpdates();
+                        break;
+
+                    case RfbProto.ServerFence:
+                        handleServerFence();
+                        break;
+
                     case RfbProto.Bell:
                         canvas.displayShortToastMessage("VNC Beep");
                         break;
 
                     case RfbProto.ServerCutText:
-                        remoteClipboardChanged(readServerCutText());
+                        String text = readServerCutText();
+                        if (text != null) {
+                            remoteClipboardChanged(text);
+                        }
                         break;
 
                     case RfbProto.TextChat:
@@ -2049,11 +2295,160 @@ public class RfbProto extends RfbConnectable {
             throw e;
         } finally {
             Log.v(TAG, "Closing VNC Connection");
+            stopCapture();
+            if (decodeStats != null) {
+                Log.i(TAG, decodeStats.dump());
+            }
             closeSocket();
         }
         closeSocket();
     }
 
+    /**
+     * Bytes received from the server so far, including what was read ahead.
+     */
+    private long bytesReceived() {
+        if (nioTransport != null) {
+            return nioTransport.getBytesRead();
+        }
+        return rawInStream != null ? rawInStream.getBytesRead() : 0;
+    }
+
+    /**
+     * Bytes the protocol thread has read so far, for the decode stats.
+     */
+    private long bytesConsumed() {
+        if (pipelinedInStream != null) {
+            return pipelinedInStream.getBytesConsumed();
+        }
+        return rawInStream != null ? rawInStream.getBytesRead() : 0;
+    }
+
+    /**
+     * Time the protocol thread has waited for data so far, for the decode stats.
+     */
+    private long waitNs() {
+        if (pipelinedInStream != null) {
+            return pipelinedInStream.getWaitNs();
+        }
+        return rawInStream != null ? rawInStream.getWaitNs() : 0;
+    }
+
+    /**
+     * Starts recording the server messages to a capture file in the app's external files,
+     * where it can be pulled off the device and replayed with ReplayInStream.
+     */
+    private void startCapture() {
+        File dir = canvas.getContext().getExternalFilesDir("captures");
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            Log.e(TAG, "No directory for session captures");
+            return;
+        }
+
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".rfbcap";
+        File file = new File(dir, name);
+        try {
+            captureInStream = new CaptureInStream(is, new FileOutputStream(file),
+                    framebufferWidth, framebufferHeight, decoder.getColorModel().name());
+            setStreams(captureInStream, os);
+            Log.i(TAG, "Capturing session to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start session capture: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ends the capture. A capture only has room for one pixel format, so it also ends
+     * when the pixel format changes.
+     */
+    private void stopCapture() {
+        if (captureInStream != null) {
+            captureInStream.stopRecording();
+        }
+    }
+
+    /**
+     * Feeds the size and duration of an update to the encoding controller, sends the new
+     * encodings when it decides to switch, and probes the round-trip time every few seconds.
+     */
+    private void adaptEncoding(long bytes, long ns) throws IOException {
+        if (encodingController.updateReceived(bytes, ns)) {
+            setEncodings();
+        }
+
+        long now = System.currentTimeMillis();
+        if (supportsFence && !rttProbePending && now - lastRttProbeMs > 2000) {
+            byte[] payload = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                payload[i] = (byte) (now >> (56 - 8 * i));
+            }
+            // BlockBefore makes the server answer only after it has handled what we sent earlier
+            writeFence(FenceFlagRequest | FenceFlagBlockBefore, payload, payload.length);
+            rttProbePending = true;
+            lastRttProbeMs = now;
+        }
+    }
+
+    /**
+     * The server sends EndOfContinuousUpdates once to announce the extension, and then each
+     * time it stops continuous updates on our request.
+     */
+    private void handleEndOfContinuousUpdates() throws Exception {
+        decoder.flush();
+
+        boolean announced = !supportsContinuousUpdates;
+        supportsContinuousUpdates = true;
+        continuousUpdatesActive = false;
+        continuousUpdatesStopping = false;
+
+        // Continuous updates only cover the whole framebuffer, the partial bitmap
+        // implementations request the area they show.
+        if (!canvas.useFull) {
+            return;
+        }
+
+        if (decoder.isChangedColorModel()) {
+            stopCapture();
+            decoder.setPixelFormat(this);
+            canvas.writeFullUpdateRequest(false);
+        } else if (!announced) {
+            canvas.writeFullUpdateRequest(true);
+        }
+        writeEnableContinuousUpdates(true);
+    }
+
+    /**
+     * Answers fence requests. Everything received before the fence is in the framebuffer by
+     * the time we reply, which is what the server uses to pace its updates.
+     */
+    private void handleServerFence() throws Exception {
+        readFully(fencePayload, 0, 3);
+        int flags = is.readInt();
+        int len = is.readUnsignedByte();
+        if (len > FenceMaxPayload) {
+            throw new Exception("Fence payload too large: " + len);
+        }
+        readFully(fencePayload, 0, len);
+        supportsFence = true;
+
+        if ((flags & FenceFlagRequest) == 0) {
+            // The answer to our round-trip probe
+            if (rttProbePending && len == 8 && encodingController != null) {
+                long sentMs = 0;
+                for (int i = 0; i < 8; i++) {
+                    sentMs = sentMs << 8 | (fencePayload[i] & 0xff);
+                }
+                encodingController.rttMeasured(System.currentTimeMillis() - sentMs);
+            }
+            rttProbePending = false;
+            return;
+        }
+
+        decoder.flush();
+        // SyncNext is not supported, and is cleared as the protocol requires
+        writeFence(flags & FenceFlagsSupported & ~FenceFlagRequest, fencePayload, len);
+    }
+
     /**
      * This method handles the pseudo encoding ExtendedDesktopSize enabling a remote resizing of the vnc session
      * Protocol: https://github.com/rfbproto/rfbproto/blob/master/rfbproto.rst#extendeddesktopsize-pseudo-encoding
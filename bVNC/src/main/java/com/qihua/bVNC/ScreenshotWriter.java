@@ -0,0 +1,144 @@
+package com.qihua.bVNC;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Saves the desktop screenshot shown in the connection list when a session ends.
+ * <p>
+ * Only the downscaled pixels are taken on the calling thread. Encoding and writing
+ * happen on a background thread, into a temporary file that replaces the screenshot
+ * once it is complete. With a FullBufferBitmapData the screenshot is not written again
+ * while a hash of the framebuffer says that the desktop looks as it did at the last one.
+ * <p>
+ * Screenshots are WebP, the .png names they were given are kept for existing connections.
+ * BitmapFactory goes by the content anyway.
+ */
+class ScreenshotWriter {
+    private static final String TAG = "ScreenshotWriter";
+    private static final int QUALITY = 90;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Content hash of the last screenshot written to each file, guarded by itself
+    private static final Map<String, Long> writtenHashes = new HashMap<>();
+
+    static void write(AbstractBitmapData data, final String filePath, int dstWidth) {
+        if (data == null) {
+            return;
+        }
+
+        final Bitmap snapshot;
+        final Long hash;
+        if (data.mbitmap != null) {
+            hash = null;
+            synchronized (data.mbitmap) {
+                int width = data.mbitmap.getWidth();
+                int height = data.mbitmap.getHeight();
+                dstWidth = Math.min(dstWidth, width);
+                int dstHeight = Math.max(1, height * dstWidth / width);
+                snapshot = Bitmap.createScaledBitmap(data.mbitmap, dstWidth, dstHeight, true);
+            }
+        } else if (data instanceof FullBufferBitmapData && data.bitmapPixels != null) {
+            FullBufferBitmapData full = (FullBufferBitmapData) data;
+            int width = full.framebufferwidth;
+            int height = full.framebufferheight;
+            if (width <= 0 || height <= 0 || full.bitmapPixels.length < width * height) {
+                return;
+            }
+            dstWidth = Math.min(dstWidth, width);
+            int dstHeight = Math.max(1, height * dstWidth / width);
+
+            // Hashed in full rather than from the tile hashes, which miss whatever arrived
+            // after the last frame. Still cheap next to encoding the screenshot.
+            hash = FramebufferTiles.hashTile(full.bitmapPixels, width, 0, 0, width, height) * 31 + dstWidth;
+            synchronized (writtenHashes) {
+                if (hash.equals(writtenHashes.get(filePath)) && new File(filePath).exists()) {
+                    Log.d(TAG, "Desktop unchanged, keeping " + filePath);
+                    return;
+                }
+            }
+            int[] pixels = scalePixels(full.bitmapPixels, width, height, dstWidth, dstHeight);
+            snapshot = Bitmap.createBitmap(pixels, dstWidth, dstHeight, Bitmap.Config.ARGB_8888);
+        } else {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean written = writeAtomically(snapshot, filePath);
+                snapshot.recycle();
+                synchronized (writtenHashes) {
+                    if (written && hash != null) {
+                        writtenHashes.put(filePath, hash);
+                    } else {
+                        writtenHashes.remove(filePath);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Scales a framebuffer with rows width apart down to dstWidth x dstHeight, averaging
+     * the 2x2 pixels around the center of the area each pixel stands for. Alpha is made
+     * opaque, not all decoders set it.
+     */
+    private static int[] scalePixels(int[] pixels, int width, int height, int dstWidth, int dstHeight) {
+        int[] scaled = new int[dstWidth * dstHeight];
+        int i = 0;
+        for (int y = 0; y < dstHeight; y++) {
+            int y0 = (int) (((long) y * 2 + 1) * height / (2L * dstHeight));
+            int row0 = y0 * width;
+            int row1 = Math.min(y0 + 1, height - 1) * width;
+            for (int x = 0; x < dstWidth; x++) {
+                int x0 = (int) (((long) x * 2 + 1) * width / (2L * dstWidth));
+                int x1 = Math.min(x0 + 1, width - 1);
+                int p0 = pixels[row0 + x0];
+                int p1 = pixels[row0 + x1];
+                int p2 = pixels[row1 + x0];
+                int p3 = pixels[row1 + x1];
+                int r = ((p0 >> 16 & 0xff) + (p1 >> 16 & 0xff) + (p2 >> 16 & 0xff) + (p3 >> 16 & 0xff)) >> 2;
+                int g = ((p0 >> 8 & 0xff) + (p1 >> 8 & 0xff) + (p2 >> 8 & 0xff) + (p3 >> 8 & 0xff)) >> 2;
+                int b = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff)) >> 2;
+                scaled[i++] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return scaled;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean writeAtomically(Bitmap bitmap, String filePath) {
+        File file = new File(filePath);
+        File tmp = new File(filePath + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                Bitmap.CompressFormat format = Constants.SDK_INT >= android.os.Build.VERSION_CODES.R
+                        ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+                if (!bitmap.compress(format, QUALITY, out)) {
+                    throw new IOException("Could not encode the screenshot");
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            Log.d(TAG, "Desktop screenshot " + bitmap.getWidth() + "x" + bitmap.getHeight() + " written to " + filePath);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write screenshot " + filePath + ": " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+    }
+}
@@ -157,9 +157,12 @@ class UltraCompactBitmapData extends AbstractBitmapData {
         }
 
         @Override
-        public void draw(Canvas canvas) {
+        void drawFramebuffer(Canvas canvas) {
             canvas.drawBitmap(data.mbitmap, 0, 0, _defaultPaint);
+        }
 
+        @Override
+        void drawSoftCursor(Canvas canvas) {
             if (drawCursor) {
                 canvas.drawBitmap(softCursor, cursorRect.left, cursorRect.top, _defaultPaint);
             }
@@ -37,7 +37,6 @@ import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkCapabilities;
@@ -65,7 +64,6 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.xml.sax.SAXException;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -545,26 +543,6 @@ public class Utils {
         return result;
     }
 
-    static void writeScreenshotToFile(AbstractBitmapData drawable,
-                                      String filePath, int dstWidth) {
-        try {
-            if (drawable != null && drawable.mbitmap != null) {
-                // TODO: Add Filename to settings.
-                FileOutputStream out = new FileOutputStream(filePath);
-                double scaleReduction = (double) drawable.mbitmap.getWidth() / dstWidth;
-                int dstHeight = (int) ((double) drawable.mbitmap.getHeight() / scaleReduction);
-                Log.d(TAG, "Desktop screenshot width: " + dstWidth + ", height " + dstHeight);
-                Bitmap tmp = Bitmap.createScaledBitmap(drawable.mbitmap, dstWidth, dstHeight, true);
-                tmp.compress(Bitmap.CompressFormat.PNG, 100, out);
-                out.close();
-//                tmp.recycle();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-    }
-
     /**
      * Either returns the input of it's already a UUID or returns a random UUID.
      * @param string which if it's a string representation of a UUID will be returned unaltered
@@ -80,7 +80,7 @@ class ZoomScaling extends AbstractScaling {
 //        canvas.relativePan(0, 0);
 //        canvas.resetScroll();
 //        canvas.relativePan(0, 0);
-        canvas.reDraw(0, 0,canvas.getWidth(), canvas.getHeight());
+        canvas.invalidateView();
     }
 
     /* (non-Javadoc)
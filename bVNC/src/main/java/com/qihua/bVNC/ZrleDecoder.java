@@ -0,0 +1,303 @@
+package com.qihua.bVNC;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes ZRLE tiles straight out of the inflated rect data.
+ * <p>
+ * Each rect is inflated into one reusable byte array, and the tiles are parsed from it
+ * with a plain index instead of going through InStream one byte at a time. Palette and
+ * run-length output is expanded in bulk loops. Nothing is allocated per rect or tile
+ * once the buffers have grown to the largest rect seen.
+ * <p>
+ * Only depends on java.util.zip, so it can be benchmarked on a plain JVM.
+ */
+class ZrleDecoder {
+    // All ZRLE rects of a connection share one zlib stream
+    private final Inflater inflater = new Inflater();
+    private byte[] buf = new byte[65536];
+    private int pos;
+    private int len;
+
+    // Palette of the current tile, already mapped to ARGB
+    private final int[] palette = new int[128];
+
+    private int bytesPerPixel = 4;
+    private int[] colorMap;
+    private int solidColor;
+
+    /**
+     * @param bytesPerPixel 1 for a palette based pixel format, in which case pixels are
+     *                      looked up in colorMap, or otherwise 3 byte CPIXELs
+     */
+    void setPixelFormat(int bytesPerPixel, int[] colorMap) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.colorMap = colorMap;
+    }
+
+    /**
+     * Starts over with a new zlib stream.
+     */
+    void reset() {
+        inflater.reset();
+        pos = len = 0;
+    }
+
+    /**
+     * Inflates the compressed data of one rect, whose tiles are then read with decodeTile().
+     */
+    void inflate(byte[] data, int offset, int length) throws Exception {
+        inflater.setInput(data, offset, length);
+        pos = len = 0;
+        try {
+            while (true) {
+                if (len == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int n = inflater.inflate(buf, len, buf.length - len);
+                len += n;
+                if (n == 0 && len < buf.length) {
+                    if (inflater.needsDictionary()) {
+                        throw new Exception("ZRLE decoder: unexpected zlib dictionary");
+                    }
+                    // Everything the server flushed for this rect is out
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new Exception("ZRLE decoder: inflate failed");
+        }
+    }
+
+    /**
+     * Decodes the next tile of tw x th pixels into dst, whose rows are dstStride apart.
+     *
+     * @return false if the tile has a single color, which is then left to the caller to
+     * fill, see getSolidColor(). Nothing is written to dst in that case.
+     */
+    boolean decodeTile(int tw, int th, int[] dst, int dstOffset, int dstStride) throws Exception {
+        int mode = readU8();
+        boolean rle = (mode & 128) != 0;
+        int palSize = mode & 127;
+
+        readPalette(palSize);
+
+        if (palSize == 1) {
+            int pix = palette[0];
+            solidColor = bytesPerPixel == 1 ? pix : 0xFF000000 | pix;
+            return false;
+        }
+
+        if (!rle) {
+            if (palSize == 0) {
+                readRawPixels(tw, th, dst, dstOffset, dstStride);
+            } else {
+                readPackedPixels(tw, th, palSize, dst, dstOffset, dstStride);
+            }
+        } else {
+            if (palSize == 0) {
+                readPlainRLEPixels(tw, th, dst, dstOffset, dstStride);
+            } else {
+                readPackedRLEPixels(tw, th, dst, dstOffset, dstStride);
+            }
+        }
+        return true;
+    }
+
+    int getSolidColor() {
+        return solidColor;
+    }
+
+    private void need(int n) throws Exception {
+        if (len - pos < n) {
+            throw new Exception("ZRLE decoder: end of data");
+        }
+    }
+
+    private int readU8() throws Exception {
+        if (pos >= len) {
+            throw new Exception("ZRLE decoder: end of data");
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    private void readPalette(int palSize) throws Exception {
+        readPixels(palette, 0, palSize);
+    }
+
+    /**
+     * Reads count pixels into dst, mapped to ARGB.
+     */
+    private void readPixels(int[] dst, int offset, int count) throws Exception {
+        byte[] b = buf;
+        int p = pos;
+        if (bytesPerPixel == 1) {
+            need(count);
+            int[] map = colorMap;
+            for (int i = offset, end = offset + count; i < end; i++) {
+                dst[i] = map[b[p++] & 0xFF];
+            }
+        } else {
+            need(count * 3);
+            for (int i = offset, end = offset + count; i < end; i++, p += 3) {
+                dst[i] = (b[p + 2] & 0xFF) << 16 | (b[p + 1] & 0xFF) << 8 | (b[p] & 0xFF);
+            }
+        }
+        pos = p;
+    }
+
+    private void readRawPixels(int tw, int th, int[] dst, int offset, int stride) throws Exception {
+        for (int j = 0; j < th; j++, offset += stride) {
+            readPixels(dst, offset, tw);
+        }
+    }
+
+    private void readPackedPixels(int tw, int th, int palSize, int[] dst, int offset, int stride)
+            throws Exception {
+        int bppp = palSize > 16 ? 8 : (palSize > 4 ? 4 : (palSize > 2 ? 2 : 1));
+        int mask = (1 << bppp) - 1;
+        int bytesPerRow = (tw * bppp + 7) >> 3;
+        need(bytesPerRow * th);
+
+        byte[] b = buf;
+        int[] pal = palette;
+        int p = pos;
+        for (int j = 0; j < th; j++, offset += stride) {
+            int i = offset;
+            int eol = offset + tw;
+            if (bppp == 8) {
+                while (i < eol) {
+                    dst[i++] = pal[b[p++] & 127];
+                }
+                continue;
+            }
+
+            // Unpack a whole byte at a time, the last one of a row may be partly used
+            while (i < eol) {
+                int bits = b[p++] & 0xFF;
+                for (int shift = 8 - bppp; shift >= 0 && i < eol; shift -= bppp) {
+                    dst[i++] = pal[(bits >> shift) & mask];
+                }
+            }
+        }
+        pos = p;
+    }
+
+    private void readPlainRLEPixels(int tw, int th, int[] dst, int offset, int stride) throws Exception {
+        byte[] b = buf;
+        int p = pos;
+        int limit = len;
+        int x = 0;
+        int row = offset;
+        int remaining = tw * th;
+        while (remaining > 0) {
+            int pix;
+            if (bytesPerPixel == 1) {
+                if (p >= limit) {
+                    throw new Exception("ZRLE decoder: end of data");
+                }
+                pix = colorMap[b[p++] & 0xFF];
+            } else {
+                if (limit - p < 3) {
+                    throw new Exception("ZRLE decoder: end of data");
+                }
+                pix = (b[p + 2] & 0xFF) << 16 | (b[p + 1] & 0xFF) << 8 | (b[p] & 0xFF);
+                p += 3;
+            }
+
+            int runLength = 1;
+            int l;
+            do {
+                if (p >= limit) {
+                    throw new Exception("ZRLE decoder: end of data");
+                }
+                l = b[p++] & 0xFF;
+                runLength += l;
+            } while (l == 255);
+            if (runLength > remaining) {
+                throw new Exception("ZRLE decoder: assertion failed (len <= end - ptr)");
+            }
+            remaining -= runLength;
+
+            // A run may continue over several rows of the tile
+            while (runLength > 0) {
+                int n = Math.min(runLength, tw - x);
+                fill(dst, row + x, n, pix);
+                runLength -= n;
+                x += n;
+                if (x == tw) {
+                    x = 0;
+                    row += stride;
+                }
+            }
+        }
+        pos = p;
+    }
+
+    private void readPackedRLEPixels(int tw, int th, int[] dst, int offset, int stride) throws Exception {
+        byte[] b = buf;
+        int p = pos;
+        int limit = len;
+        int x = 0;
+        int row = offset;
+        int remaining = tw * th;
+        int[] pal = palette;
+        while (remaining > 0) {
+            if (p >= limit) {
+                throw new Exception("ZRLE decoder: end of data");
+            }
+            int index = b[p++] & 0xFF;
+            int pix = pal[index & 127];
+            if (index < 128) {
+                dst[row + x] = pix;
+                remaining--;
+                if (++x == tw) {
+                    x = 0;
+                    row += stride;
+                }
+                continue;
+            }
+
+            int runLength = 1;
+            int l;
+            do {
+                if (p >= limit) {
+                    throw new Exception("ZRLE decoder: end of data");
+                }
+                l = b[p++] & 0xFF;
+                runLength += l;
+            } while (l == 255);
+            if (runLength > remaining) {
+                throw new Exception("ZRLE decoder: assertion failed (len <= end - ptr)");
+            }
+            remaining -= runLength;
+
+            while (runLength > 0) {
+                int n = Math.min(runLength, tw - x);
+                fill(dst, row + x, n, pix);
+                runLength -= n;
+                x += n;
+                if (x == tw) {
+                    x = 0;
+                    row += stride;
+                }
+            }
+        }
+        pos = p;
+    }
+
+    /**
+     * Arrays.fill only pays off for longer runs, most runs in a tile are short.
+     */
+    private static void fill(int[] dst, int from, int n, int pix) {
+        if (n > 16) {
+            Arrays.fill(dst, from, from + n, pix);
+            return;
+        }
+        for (int end = from + n; from < end; from++) {
+            dst[from] = pix;
+        }
+    }
+}
@@ -477,7 +477,6 @@ public class RemoteCanvasHandler extends Handler {
                 break;
             case RemoteClientLibConstants.SERVER_CUT_TEXT:
                 messageData = (Bundle) msg.obj;
-                c.serverJustCutText = true;
                 c.setClipboardText(messageData.getString("text"));
                 break;
             case RemoteClientLibConstants.REINIT_SESSION:
@@ -0,0 +1,173 @@
+package com.tigervnc.rdr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Passes everything read from another InStream through, and records it to a capture
+ * file that ReplayInStream can play back.
+ * <p>
+ * Only what the protocol actually reads is recorded, nothing is read ahead, so that
+ * capturing never waits for data the server has not sent yet. Reads that follow each
+ * other within a millisecond go into one record, stamped with the time of the first.
+ * <p>
+ * A capture file starts with the magic, a version byte, the framebuffer width and
+ * height as shorts and the pixel format name. Records follow, each the microseconds
+ * since the previous record and the data length as varints, then the data.
+ */
+public class CaptureInStream extends InStream {
+    static final byte[] MAGIC = {'R', 'F', 'B', 'C', 'A', 'P'};
+    static final int VERSION = 1;
+
+    private static final int MAX_RECORD = 64 * 1024;
+    private static final long RECORD_NS = 1000000;
+
+    private final InStream in;
+    private DataOutputStream out;
+    private final byte[] record = new byte[MAX_RECORD];
+    private int recordLength;
+    private long recordStartNs;
+    private long lastRecordNs;
+    private final byte[] item = new byte[8];
+
+    /**
+     * @param pixelFormat names the pixel format the data was sent in, so that a replay
+     *                    can set up the decoder the same way
+     */
+    public CaptureInStream(InStream in, OutputStream file, int width, int height, String pixelFormat)
+            throws IOException {
+        this.in = in;
+        out = new DataOutputStream(new BufferedOutputStream(file, MAX_RECORD));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeShort(width);
+        out.writeShort(height);
+        out.writeUTF(pixelFormat);
+        lastRecordNs = System.nanoTime();
+    }
+
+    /**
+     * Writes what is left and closes the file. Reads still pass through afterwards.
+     */
+    public synchronized void stopRecording() {
+        if (out == null) {
+            return;
+        }
+        try {
+            flushRecord();
+            out.close();
+        } catch (IOException e) {
+            // Nothing more to do about the capture
+        }
+        out = null;
+    }
+
+    private synchronized void record(byte[] data, int offset, int length) {
+        if (out == null) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            while (length > 0) {
+                if (recordLength > 0 && (recordLength == MAX_RECORD || now - recordStartNs > RECORD_NS)) {
+                    flushRecord();
+                }
+                if (recordLength == 0) {
+                    recordStartNs = now;
+                }
+                int n = Math.min(length, MAX_RECORD - recordLength);
+                System.arraycopy(data, offset, record, recordLength, n);
+                recordLength += n;
+                offset += n;
+                length -= n;
+            }
+        } catch (IOException e) {
+            // A full disk should not end the session, the capture just stops here
+            out = null;
+        }
+    }
+
+    private void flushRecord() throws IOException {
+        if (recordLength == 0) {
+            return;
+        }
+        writeVarint((recordStartNs - lastRecordNs) / 1000);
+        writeVarint(recordLength);
+        out.write(record, 0, recordLength);
+        lastRecordNs = recordStartNs;
+        recordLength = 0;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void recordItem(long value, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            item[i] = (byte) value;
+            value >>= 8;
+        }
+        record(item, 0, size);
+    }
+
+    @Override
+    public int check(int itemSize, int nItems, boolean wait) throws IOException {
+        return in.check(itemSize, nItems, wait);
+    }
+
+    @Override
+    protected int overrun(int itemSize, int nItems, boolean wait) throws IOException {
+        // Never reached, all reads go straight to the underlying stream
+        return in.check(itemSize, nItems, wait);
+    }
+
+    @Override
+    public int readByte() throws IOException {
+        int v = in.readByte();
+        recordItem(v, 1);
+        return v;
+    }
+
+    @Override
+    public int readShort() throws IOException {
+        int v = in.readShort();
+        recordItem(v, 2);
+        return v;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        int v = in.readInt();
+        recordItem(v, 4);
+        return v;
+    }
+
+    @Override
+    public long readLong() throws Exception {
+        long v = in.readLong();
+        recordItem(v, 8);
+        return v;
+    }
+
+    @Override
+    public void readBytes(ByteBuffer data, int length) throws IOException {
+        int start = data.position();
+        in.readBytes(data, length);
+        if (data.hasArray()) {
+            record(data.array(), data.arrayOffset() + start, length);
+        }
+    }
+
+    @Override
+    public void readBytes(byte[] bytes, int off, int length) throws IOException {
+        in.readBytes(bytes, off, length);
+        record(bytes, off, length);
+    }
+}
@@ -0,0 +1,206 @@
+package com.tigervnc.rdr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The sending side of a NioTransport. Writing only copies the data into a queue of
+ * direct buffers, which the I/O thread hands to the socket with gathering writes as
+ * fast as it takes them. Writers never wait for the network, unless 1MB is queued.
+ */
+public class NioOutStream extends OutStream {
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    private static final int MAX_PENDING = 1024 * 1024;
+    // Empty segments kept for reuse
+    private static final int MAX_SPARE = 8;
+
+    private static class Segment {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        // Written to the socket up to here, queued up to buffer.position()
+        int sent;
+    }
+
+    private final Runnable queued;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final ArrayDeque<Segment> spare = new ArrayDeque<Segment>();
+    private ByteBuffer[] gather = new ByteBuffer[4];
+    private int pending;
+    private IOException error;
+    private boolean closed;
+
+    /**
+     * @param queued run when data is queued while there was none, to wake the I/O thread
+     */
+    NioOutStream(Runnable queued) {
+        this.queued = queued;
+    }
+
+    synchronized boolean hasPending() {
+        return pending > 0;
+    }
+
+    /**
+     * Writes as much of the queue as the channel takes without blocking.
+     */
+    synchronized void writeTo(GatheringByteChannel channel) throws IOException {
+        if (pending == 0) {
+            return;
+        }
+
+        int n = segments.size();
+        if (gather.length < n) {
+            gather = new ByteBuffer[n * 2];
+        }
+        int i = 0;
+        for (Segment segment : segments) {
+            ByteBuffer buffer = segment.buffer;
+            buffer.limit(buffer.position());
+            buffer.position(segment.sent);
+            gather[i++] = buffer;
+        }
+
+        long written;
+        try {
+            written = channel.write(gather, 0, n);
+        } finally {
+            // Back to appending after what is queued
+            for (Segment segment : segments) {
+                ByteBuffer buffer = segment.buffer;
+                segment.sent = buffer.position();
+                buffer.position(buffer.limit());
+                buffer.limit(buffer.capacity());
+            }
+        }
+
+        pending -= (int) written;
+        while (!segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            if (segment.sent < segment.buffer.position()
+                    || (segments.size() == 1 && segment.buffer.hasRemaining())) {
+                break;
+            }
+            segments.pollFirst();
+            if (spare.size() < MAX_SPARE) {
+                segment.buffer.clear();
+                segment.sent = 0;
+                spare.add(segment);
+            }
+        }
+        if (pending == 0 && !segments.isEmpty()) {
+            // Start the last one over instead of letting it fill up
+            Segment segment = segments.peekFirst();
+            segment.buffer.clear();
+            segment.sent = 0;
+        }
+        notifyAll();
+    }
+
+    synchronized void fail(IOException e) {
+        error = e != null ? e : new IOException("NioOutStream: closed");
+        closed = true;
+        notifyAll();
+    }
+
+    private void queue(byte[] data, int off, int len) throws IOException {
+        while (pending > 0 && pending + len > MAX_PENDING && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (closed) {
+            throw error;
+        }
+
+        boolean wasEmpty = pending == 0;
+        while (len > 0) {
+            Segment tail = segments.peekLast();
+            if (tail == null || !tail.buffer.hasRemaining()) {
+                tail = spare.isEmpty() ? new Segment() : spare.poll();
+                segments.add(tail);
+            }
+            int n = Math.min(len, tail.buffer.remaining());
+            tail.buffer.put(data, off, n);
+            off += n;
+            len -= n;
+            pending += n;
+        }
+        if (wasEmpty) {
+            queued.run();
+        }
+    }
+
+    /**
+     * Waits until everything queued has been handed to the socket. A thread that
+     * writes in batches can let input pile up meanwhile, as with a blocking socket.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        while (pending > 0 && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (closed && pending > 0) {
+            throw error;
+        }
+    }
+
+    @Override
+    public int length() {
+        return 0;
+    }
+
+    @Override
+    protected int overrun(int itemSize, int nItems) {
+        // Never reached, all writes are queued as they come
+        return itemSize * nItems;
+    }
+
+    @Override
+    public synchronized void writeU8(int u) throws IOException {
+        write(u);
+    }
+
+    @Override
+    public synchronized void writeU16(int u) throws IOException {
+        byte[] data = {(byte) (u >> 8), (byte) u};
+        queue(data, 0, 2);
+    }
+
+    @Override
+    public synchronized void writeU32(int u) throws IOException {
+        byte[] data = {(byte) (u >> 24), (byte) (u >> 16), (byte) (u >> 8), (byte) u};
+        queue(data, 0, 4);
+    }
+
+    @Override
+    public synchronized void writeBytes(byte[] data, int dataPtr, int length) throws IOException {
+        queue(data, dataPtr, length);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        writeBytes(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        writeBytes(b, off, len);
+    }
+
+    /**
+     * Writes one byte, like RawOutStream, which this replaces.
+     */
+    @Override
+    public synchronized void write(int b) throws IOException {
+        byte[] data = {(byte) b};
+        queue(data, 0, 1);
+    }
+}
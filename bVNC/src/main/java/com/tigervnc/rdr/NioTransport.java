@@ -0,0 +1,133 @@
+package com.tigervnc.rdr;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Moves the data of a connection with one I/O thread on a non-blocking SocketChannel.
+ * <p>
+ * Received data goes into the chunks of a PipelinedInStream, where the protocol
+ * thread reads it in place. When all chunks are full the thread stops reading and
+ * TCP flow control slows the server down. What is written to the NioOutStream is sent
+ * whenever the socket takes it, so writers never block on a congested socket.
+ */
+public class NioTransport implements Runnable {
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final PipelinedInStream in;
+    private final NioOutStream out;
+    private final Thread thread;
+
+    // Set while the thread waits for the protocol thread to free a chunk
+    private volatile boolean starved;
+    private volatile boolean closed;
+    private volatile long bytesRead;
+
+    /**
+     * Takes over a connected channel. Its socket streams can't be used anymore.
+     */
+    public NioTransport(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+
+        in = new PipelinedInStream(new Runnable() {
+            @Override
+            public void run() {
+                if (starved) {
+                    selector.wakeup();
+                }
+            }
+        });
+        out = new NioOutStream(new Runnable() {
+            @Override
+            public void run() {
+                selector.wakeup();
+            }
+        });
+
+        thread = new Thread(this, "NioTransport");
+        thread.start();
+    }
+
+    public PipelinedInStream getInStream() {
+        return in;
+    }
+
+    public NioOutStream getOutStream() {
+        return out;
+    }
+
+    /**
+     * Total number of bytes received from the socket.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        IOException error = null;
+        PipelinedInStream.Chunk chunk = null;
+        try {
+            while (!closed) {
+                if (chunk == null) {
+                    chunk = in.pollFree();
+                }
+                starved = chunk == null;
+                if (starved) {
+                    // A chunk may have been freed before starved was set
+                    chunk = in.pollFree();
+                    starved = chunk == null;
+                }
+
+                int ops = 0;
+                if (chunk != null) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (out.hasPending()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+                selector.select();
+                selector.selectedKeys().clear();
+
+                if (chunk != null && key.isValid()) {
+                    chunk.buffer.clear();
+                    int n = channel.read(chunk.buffer);
+                    if (n < 0) {
+                        break;
+                    }
+                    if (n > 0) {
+                        chunk.length = n;
+                        bytesRead += n;
+                        in.putFilled(chunk);
+                        chunk = null;
+                    }
+                }
+
+                out.writeTo(channel);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        in.putEnd(error);
+        out.fail(error);
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to do about the connection
+        }
+    }
+}
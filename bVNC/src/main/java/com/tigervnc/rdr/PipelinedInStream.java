@@ -0,0 +1,232 @@
+package com.tigervnc.rdr;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * An InStream fed by a separate reader thread. The reader drains the socket into a
+ * bounded queue of chunks while the protocol thread decodes, so receiving the next
+ * rectangles overlaps with decoding the current ones.
+ * <p>
+ * The reader is either a thread of its own reading a RawInStream's socket, or the I/O
+ * thread of a NioTransport.
+ */
+public class PipelinedInStream extends InStream implements Runnable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Bounds the read-ahead to 2MB, after which the reader blocks and TCP flow
+    // control slows the server down.
+    private static final int QUEUE_CHUNKS = 32;
+    // Items read through check() are at most a long
+    private static final int MAX_ITEM_SIZE = 8;
+
+    static class Chunk {
+        final byte[] data;
+        // For reading from a channel straight into data
+        final ByteBuffer buffer;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+            buffer = ByteBuffer.wrap(data);
+        }
+    }
+
+    private static final Chunk END = new Chunk(0);
+
+    private final InputStream source;
+    private final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS);
+    // One extra slot so that the end marker always fits
+    private final ArrayBlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(QUEUE_CHUNKS + 1);
+    private final Thread reader;
+    // Called when a chunk is handed back to a reader that does not block for one
+    private final Runnable chunkFreed;
+    private volatile IOException error;
+    private volatile boolean closed = false;
+
+    // Chunk being consumed, its unread part starts at currentPos unless b points into it
+    private Chunk current;
+    private int currentPos;
+    // Holds items that straddle two chunks
+    private final byte[] carry = new byte[MAX_ITEM_SIZE];
+    // Bytes of all chunks taken from the queue, and the time spent waiting for them
+    private long taken;
+    private long waitNs;
+
+    public PipelinedInStream(RawInStream in) {
+        source = in.is;
+        chunkFreed = null;
+        for (int i = 0; i < QUEUE_CHUNKS; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+
+        reader = new Thread(this, "PipelinedInStream");
+        reader.start();
+    }
+
+    /**
+     * Creates a stream that is filled through pollFree() and putFilled() by a reader
+     * that must not block, which gets chunkFreed run when a chunk becomes free.
+     */
+    PipelinedInStream(Runnable chunkFreed) {
+        source = null;
+        reader = null;
+        this.chunkFreed = chunkFreed;
+        for (int i = 0; i < QUEUE_CHUNKS; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * @return a chunk to read into, or null if all of them are waiting to be consumed
+     */
+    Chunk pollFree() {
+        return free.poll();
+    }
+
+    void putFilled(Chunk chunk) {
+        // There are never more chunks than filled has room for
+        filled.offer(chunk);
+    }
+
+    /**
+     * Ends the stream after the chunks already filled, with the error if there is one.
+     */
+    void putEnd(IOException e) {
+        error = e;
+        filled.offer(END);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                Chunk chunk = free.take();
+                int n = source.read(chunk.data, 0, chunk.data.length);
+                if (n < 0) {
+                    break;
+                }
+                chunk.length = n;
+                filled.put(chunk);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // closed
+        }
+        filled.offer(END);
+    }
+
+    /**
+     * Total number of bytes the protocol thread has read. Unlike the bytes read from the
+     * socket, this does not include what the reader thread has read ahead.
+     */
+    public long getBytesConsumed() {
+        long unread = end - ptr;
+        if (current != null) {
+            unread += current.length - currentPos;
+        }
+        return taken - unread;
+    }
+
+    /**
+     * Total time the protocol thread has waited for the reader thread.
+     */
+    public long getWaitNs() {
+        return waitNs;
+    }
+
+    public void close() {
+        closed = true;
+        if (reader != null) {
+            reader.interrupt();
+        }
+    }
+
+    @Override
+    protected int overrun(int itemSize, int nItems, boolean wait) throws IOException {
+        if (itemSize > MAX_ITEM_SIZE) {
+            throw new IOException("PipelinedInStream: item size " + itemSize + " too large");
+        }
+
+        int n = end - ptr;
+        if (b == carry) {
+            System.arraycopy(carry, ptr, carry, 0, n);
+        } else {
+            if (n > 0) {
+                System.arraycopy(b, ptr, carry, 0, n);
+            }
+            // The rest of the current chunk is consumed or copied to carry
+            releaseCurrent();
+        }
+
+        if (n == 0) {
+            if (current == null || currentPos == current.length) {
+                nextChunk();
+            }
+            if (current.length - currentPos >= itemSize) {
+                b = current.data;
+                ptr = currentPos;
+                end = current.length;
+                currentPos = end;
+                return Math.min((end - ptr) / itemSize, nItems);
+            }
+        }
+
+        while (n < itemSize) {
+            if (current == null || currentPos == current.length) {
+                nextChunk();
+            }
+            int len = Math.min(itemSize - n, current.length - currentPos);
+            System.arraycopy(current.data, currentPos, carry, n, len);
+            currentPos += len;
+            n += len;
+        }
+
+        b = carry;
+        ptr = 0;
+        end = n;
+        return Math.min(n / itemSize, nItems);
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            free.offer(current);
+            current = null;
+            if (chunkFreed != null) {
+                chunkFreed.run();
+            }
+        }
+    }
+
+    private void nextChunk() throws IOException {
+        releaseCurrent();
+
+        Chunk chunk = filled.poll();
+        if (chunk == null) {
+            long start = System.nanoTime();
+            try {
+                chunk = filled.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            waitNs += System.nanoTime() - start;
+        }
+
+        if (chunk == END) {
+            // Leave the marker for any further read
+            filled.offer(END);
+            if (error != null) {
+                throw error;
+            }
+            throw new EOFException("PipelinedInStream: end of stream");
+        }
+
+        current = chunk;
+        currentPos = 0;
+        taken += chunk.length;
+    }
+}
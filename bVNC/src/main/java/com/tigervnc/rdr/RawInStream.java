@@ -1,15 +1,40 @@
 package com.tigervnc.rdr;
 
 import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 public class RawInStream extends InStream {
     DataInputStream is;
+    private final CountingInputStream counter;
 
     public RawInStream(InputStream is) {
-        this.is = new DataInputStream(is);
+        counter = new CountingInputStream(is);
+        this.is = new DataInputStream(counter);
+    }
+
+    /**
+     * Total number of bytes received from the underlying stream.
+     */
+    public long getBytesRead() {
+        return counter.count;
+    }
+
+    /**
+     * Starts timing the reads from the underlying stream, see getWaitNs().
+     */
+    public void setTimeReads(boolean timeReads) {
+        counter.timed = timeReads;
+    }
+
+    /**
+     * Total time spent in reads from the underlying stream, mostly waiting for the data
+     * to arrive. Only counted while setTimeReads() is on.
+     */
+    public long getWaitNs() {
+        return counter.waitNs;
     }
 
     @Override
@@ -52,4 +77,48 @@ public class RawInStream extends InStream {
     public int readUnsignedInt() throws IOException {
         return is.readInt();
     }
+
+    private static class CountingInputStream extends FilterInputStream {
+        // Written by the one thread that reads the socket
+        volatile long count;
+        volatile long waitNs;
+        volatile boolean timed;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = timed ? System.nanoTime() : 0;
+            int b = in.read();
+            if (start != 0) {
+                waitNs += System.nanoTime() - start;
+            }
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = timed ? System.nanoTime() : 0;
+            int n = in.read(b, off, len);
+            if (start != 0) {
+                waitNs += System.nanoTime() - start;
+            }
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
 }
@@ -0,0 +1,150 @@
+package com.tigervnc.rdr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+/**
+ * Plays back a file written by CaptureInStream, so that the protocol and the decoder can
+ * be run on a recorded session without a server.
+ * <p>
+ * By default the data comes as fast as it is read. In real time, each record is held
+ * back until as much time has passed since the start of the replay as had passed when
+ * it was captured.
+ */
+public class ReplayInStream extends InStream {
+    private final DataInputStream file;
+    private final boolean realTime;
+    private final int width;
+    private final int height;
+    private final String pixelFormat;
+
+    private long startNs = -1;
+    // Capture time of the last record read, relative to the first one
+    private long recordUs;
+    private boolean first = true;
+
+    public ReplayInStream(InputStream file, boolean realTime) throws IOException {
+        this.file = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+        this.realTime = realTime;
+
+        byte[] magic = new byte[CaptureInStream.MAGIC.length];
+        this.file.readFully(magic);
+        if (!Arrays.equals(magic, CaptureInStream.MAGIC)) {
+            throw new IOException("ReplayInStream: not a capture file");
+        }
+        int version = this.file.readUnsignedByte();
+        if (version != CaptureInStream.VERSION) {
+            throw new IOException("ReplayInStream: unsupported capture version " + version);
+        }
+        width = this.file.readUnsignedShort();
+        height = this.file.readUnsignedShort();
+        pixelFormat = this.file.readUTF();
+
+        b = new byte[64 * 1024];
+        ptr = end = 0;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getPixelFormat() {
+        return pixelFormat;
+    }
+
+    @Override
+    protected int overrun(int itemSize, int nItems, boolean wait) throws IOException {
+        if (end - ptr > 0) {
+            System.arraycopy(b, ptr, b, 0, end - ptr);
+        }
+        end -= ptr;
+        ptr = 0;
+
+        while (end < itemSize) {
+            if (!nextRecord()) {
+                throw new EOFException("ReplayInStream: end of capture");
+            }
+        }
+        return Math.min(end / itemSize, nItems);
+    }
+
+    @Override
+    public void readBytes(byte[] bytes, int off, int length) throws IOException {
+        while (length > 0) {
+            int n = check(1, length);
+            System.arraycopy(b, ptr, bytes, off, n);
+            ptr += n;
+            off += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Appends the next record to the buffer.
+     *
+     * @return false at the end of the capture
+     */
+    private boolean nextRecord() throws IOException {
+        long deltaUs;
+        try {
+            deltaUs = readVarint();
+        } catch (EOFException e) {
+            return false;
+        }
+        int length = (int) readVarint();
+
+        if (end + length > b.length) {
+            b = Arrays.copyOf(b, Math.max(b.length * 2, end + length));
+        }
+        file.readFully(b, end, length);
+        end += length;
+
+        recordUs = first ? 0 : recordUs + deltaUs;
+        first = false;
+        if (realTime) {
+            waitForRecord();
+        }
+        return true;
+    }
+
+    private void waitForRecord() throws IOException {
+        long now = System.nanoTime();
+        if (startNs < 0) {
+            startNs = now;
+        }
+        long waitNs = startNs + recordUs * 1000 - now;
+        if (waitNs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int v = file.readUnsignedByte();
+            value |= (long) (v & 0x7F) << shift;
+            if ((v & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("ReplayInStream: corrupt record header");
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -23,9 +23,6 @@ package com.undatech.opaque;
 import android.app.Activity;
 import android.content.Context;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -41,7 +38,6 @@ import com.qihua.bVNC.NewConnection;
 import com.qihua.bVNC.Utils;
 import com.qihua.bVNC.R;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -143,27 +139,21 @@ public class LabeledImageApapter extends BaseAdapter {
 
 
 
-        String screenshotFilePath = context.getFilesDir() + "/" + c.getScreenshotFilename();
         AppCompatImageView imageView = gridView.findViewById(R.id.grid_item_image);
         imageView.setBackgroundColor(context.getColor(R.color.black_overlay));
-        if (doNotShowDesktopThumbnails) {
-            imageView.setImageResource(R.drawable.rdp_connection);
+        ThumbnailCache thumbnails = ThumbnailCache.getInstance(context);
+        if (!doNotShowDesktopThumbnails && c.getId().equals("$NC")) {
+            thumbnails.cancel(imageView);
+            imageView.setImageResource(R.drawable.ic_add_connection_48);
             imageView.setScaleType(ImageView.ScaleType.CENTER);
         } else {
-            boolean screenshotExists = new File(screenshotFilePath).exists();
-            if (screenshotExists) {
-                Log.d(TAG, "Setting screenshot from file " + screenshotFilePath);
-                Bitmap gridImage = BitmapFactory.decodeFile(screenshotFilePath);
-                imageView.setImageBitmap(gridImage);
-                imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            // Also the placeholder until the screenshot is loaded
+            imageView.setImageResource(R.drawable.rdp_connection);
+            imageView.setScaleType(ImageView.ScaleType.CENTER);
+            if (doNotShowDesktopThumbnails || c.getScreenshotFilename() == null) {
+                thumbnails.cancel(imageView);
             } else {
-                if (c.getId().equals("$NC")) {
-                    imageView.setImageResource(R.drawable.ic_add_connection_48);
-                    imageView.setScaleType(ImageView.ScaleType.CENTER);
-                } else {
-                    imageView.setImageResource(R.drawable.rdp_connection);
-                    imageView.setScaleType(ImageView.ScaleType.CENTER);
-                }
+                thumbnails.load(imageView, context.getFilesDir() + "/" + c.getScreenshotFilename(), width);
             }
         }
         gridView.setLayoutParams(lp);
@@ -0,0 +1,212 @@
+package com.undatech.opaque;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the desktop screenshots of the connection grid as thumbnails of the cell size.
+ * <p>
+ * Screenshots are decoded on a background thread, subsampled to about the cell size
+ * and scaled down to it. The thumbnails are kept in memory, in an LRU cache of an eighth
+ * of the heap, and on disk in the cache directory, so that the next start of the app
+ * only has to decode small files. A thumbnail is made again once its screenshot is newer.
+ * <p>
+ * Must be used from the UI thread.
+ */
+class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    private static final String DIRECTORY = "thumbnails";
+    private static final int JPEG_QUALITY = 90;
+    // Cells are not laid out yet when the first views are bound
+    private static final int MIN_SIZE = 256;
+
+    private static ThumbnailCache instance;
+
+    private final File directory;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Views waiting for each thumbnail being loaded, so that binding a view again, or
+    // another view to the same connection, does not load the thumbnail twice
+    private final Map<String, List<ImageView>> waiting = new HashMap<>();
+
+    static ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ThumbnailCache(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Shows the thumbnail of a screenshot in imageView, right away if it is in memory,
+     * otherwise once it has been loaded. Until then the view keeps what it shows, and it
+     * keeps it for good if there is no screenshot.
+     * @param size the size of the cell in pixels
+     */
+    void load(final ImageView imageView, String screenshotPath, int size) {
+        final File screenshot = new File(screenshotPath);
+        final int thumbnailSize = Math.max(size, MIN_SIZE);
+        // The modification time tells thumbnails of an older screenshot apart
+        final String key = screenshot.getName() + ":" + thumbnailSize + ":" + screenshot.lastModified();
+        imageView.setTag(key);
+
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            show(imageView, bitmap);
+            return;
+        }
+        List<ImageView> views = waiting.get(key);
+        if (views != null) {
+            if (!views.contains(imageView)) {
+                views.add(imageView);
+            }
+            return;
+        }
+        views = new ArrayList<>();
+        views.add(imageView);
+        waiting.put(key, views);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = loadThumbnail(screenshot, thumbnailSize);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<ImageView> views = waiting.remove(key);
+                        if (thumbnail == null) {
+                            return;
+                        }
+                        memoryCache.put(key, thumbnail);
+                        for (ImageView view : views) {
+                            // A view may have been recycled for another connection meanwhile
+                            if (key.equals(view.getTag())) {
+                                show(view, thumbnail);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keeps a thumbnail still being loaded from replacing what imageView shows.
+     */
+    void cancel(ImageView imageView) {
+        imageView.setTag(null);
+    }
+
+    private static void show(ImageView imageView, Bitmap bitmap) {
+        imageView.setImageBitmap(bitmap);
+        imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+    }
+
+    private Bitmap loadThumbnail(File screenshot, int size) {
+        long modified = screenshot.lastModified();
+        if (modified == 0) {
+            return null;
+        }
+
+        File file = new File(directory, screenshot.getName() + "." + size + ".jpg");
+        if (file.lastModified() >= modified) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = decodeScaled(screenshot.getPath(), size);
+        if (bitmap != null) {
+            writeThumbnail(bitmap, file);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes an image so that its shorter side is size, as it is shown center cropped,
+     * or smaller if the image is smaller.
+     */
+    private static Bitmap decodeScaled(String path, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int shorter = Math.min(options.outWidth, options.outHeight);
+        if (shorter <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (shorter / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        shorter = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (shorter > size) {
+            int width = Math.max(1, bitmap.getWidth() * size / shorter);
+            int height = Math.max(1, bitmap.getHeight() * size / shorter);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Writes a temporary file first, so that a thumbnail is never read half written.
+     */
+    private void writeThumbnail(Bitmap bitmap, File file) {
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write thumbnail " + file + ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+}
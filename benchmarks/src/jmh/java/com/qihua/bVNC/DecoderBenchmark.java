@@ -0,0 +1,88 @@
+package com.qihua.bVNC;
+
+import com.tigervnc.rdr.ByteArrayInStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one FramebufferUpdate message per operation through Decoder into a full
+ * framebuffer, as the protocol thread does. The mb counter is the rate of encoded
+ * bytes read, allocations per operation come from the gc profiler.
+ * <p>
+ * Tight JPEG rects are decoded with ImageIO by the BitmapFactory stand-in, so that case
+ * mostly tells about what happens around the JPEG decoder. Parallel decoding can be
+ * switched on with -DparallelDecoding=true in the jmh jvmArgs.
+ * <p>
+ * With bitmapData=scrolled the updates go into a LargeBitmapData, as on devices without
+ * the memory for a full framebuffer, whose viewport is scrolled to the middle of the
+ * desktop. Rects outside of it are skipped, those partly inside are drawn where they
+ * overlap it as far as the encoding allows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecoderBenchmark {
+    static final int WIDTH = 1920;
+    static final int HEIGHT = 1080;
+
+    @Param({"tightFill", "tightPalette", "tightGradient", "tightJpeg", "zrle", "hextile", "rre", "corre", "copyRect"})
+    public String stream;
+
+    @Param({"full", "scrolled"})
+    public String bitmapData;
+
+    private byte[] update;
+    private ByteArrayInStream in;
+    private RfbProto rfb;
+    private Decoder decoder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        update = RfbStreams.update(stream, WIDTH, HEIGHT, new Random(42));
+        in = new ByteArrayInStream(update);
+        rfb = new RfbProto(in, WIDTH, HEIGHT);
+
+        RemoteCanvas canvas = new RemoteCanvas(WIDTH, HEIGHT);
+        decoder = new Decoder(canvas, false);
+        decoder.setBitmapData(bitmapData.equals("scrolled") ? scrolledBitmapData(rfb, canvas)
+                : new FullBufferBitmapData(rfb, canvas, 0));
+        decoder.setColorModel(COLORMODEL.C24bit);
+        decoder.setPixelFormat(rfb);
+    }
+
+    /**
+     * A LargeBitmapData of about two thirds of the desktop in each direction, centered on it.
+     */
+    static LargeBitmapData scrolledBitmapData(RfbProto rfb, RemoteCanvas canvas) {
+        LargeBitmapData data = new LargeBitmapData(rfb, canvas, WIDTH / 2, HEIGHT / 2, 16);
+        data.xoffset = (WIDTH - data.bitmapwidth) / 2;
+        data.yoffset = (HEIGHT - data.bitmapheight) / 2;
+        return data;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        decoder.flush();
+    }
+
+    @Benchmark
+    public int decode(Throughput throughput) throws Exception {
+        in.rewind();
+        decoder.resetStreams();
+        int rects = UpdateReader.readUpdates(rfb, in, decoder);
+        throughput.add(update.length);
+        return rects;
+    }
+}
@@ -0,0 +1,53 @@
+package com.qihua.bVNC;
+
+import com.qihua.tigervnc.rfb.UnicodeToKeysym;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translates typed text to keysyms, a mix of Latin-1, which is mapped directly, and
+ * characters that have to be looked up in the table. The mb counter is the rate of text
+ * translated, as UTF-8.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeysymBenchmark {
+    private int[] codePoints;
+    private int utf8Length;
+
+    @Setup
+    public void setUp() {
+        // Half ASCII, the rest Latin-1, Cyrillic, Greek, Hiragana and symbols, most of
+        // which have a keysym in the table
+        int[][] ranges = {{0x20, 0x7e}, {0x20, 0x7e}, {0x20, 0x7e}, {0x20, 0x7e}, {0x20, 0x7e},
+                {0xa0, 0xff}, {0x410, 0x44f}, {0x391, 0x3c9}, {0x3041, 0x3093}, {0x2010, 0x2044}};
+        StringBuilder text = new StringBuilder();
+        for (int[] range : ranges) {
+            for (int c = range[0]; c <= range[1]; c++) {
+                text.appendCodePoint(c);
+            }
+        }
+        codePoints = text.codePoints().toArray();
+        utf8Length = text.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public int translate(Throughput throughput) {
+        int result = 0;
+        for (int c : codePoints) {
+            result += UnicodeToKeysym.translate(c);
+        }
+        throughput.add(utf8Length);
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+package com.qihua.bVNC;
+
+import com.tigervnc.rdr.ByteArrayInStream;
+import com.tigervnc.rdr.CaptureInStream;
+import com.tigervnc.rdr.ReplayInStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes a whole session capture per operation, as written by the app with session
+ * capture enabled. Pass one with
+ *   ./gradlew :benchmarks:jmh -Pjmh.includes=ReplayBenchmark -Pjmh.benchmarkParameters=capture=/path/to.rfbcap
+ * Without one, a capture of the synthesized updates of DecoderBenchmark is replayed.
+ * <p>
+ * The capture is held in memory, so only decoding is measured. The mb counter is the
+ * rate of captured bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplayBenchmark {
+    @Param({""})
+    public String capture;
+
+    private byte[] file;
+    private int width;
+    private int height;
+    private RfbProto rfb;
+    private Decoder decoder;
+    private int captured;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = capture.isEmpty() ? synthesize(DecoderBenchmark.WIDTH, DecoderBenchmark.HEIGHT)
+                : Files.readAllBytes(Paths.get(capture));
+
+        ReplayInStream in = new ReplayInStream(new ByteArrayInputStream(file), false);
+        width = in.getWidth();
+        height = in.getHeight();
+        rfb = new RfbProto(in, width, height);
+
+        RemoteCanvas canvas = new RemoteCanvas(width, height);
+        decoder = new Decoder(canvas, false);
+        decoder.setBitmapData(new FullBufferBitmapData(rfb, canvas, 0));
+        decoder.setColorModel(COLORMODEL.valueOf(in.getPixelFormat()));
+        decoder.setPixelFormat(rfb);
+        captured = file.length;
+    }
+
+    @Benchmark
+    public int replay(Throughput throughput) throws Exception {
+        ReplayInStream in = new ReplayInStream(new ByteArrayInputStream(file), false);
+        rfb.setInStream(in);
+        decoder.resetStreams();
+
+        int rects = 0;
+        try {
+            while (true) {
+                rects += UpdateReader.readMessage(rfb, in, decoder);
+            }
+        } catch (EOFException e) {
+            // End of the capture
+        }
+        decoder.flush();
+        throughput.add(captured);
+        return rects;
+    }
+
+    /**
+     * Captures the synthesized updates of all encodings, read through CaptureInStream in
+     * chunks as a socket would deliver them.
+     */
+    static byte[] synthesize(int w, int h) throws IOException {
+        ByteArrayOutputStream session = new ByteArrayOutputStream();
+        Random random = new Random(42);
+        for (String name : RfbStreams.NAMES) {
+            byte[] update = RfbStreams.update(name, w, h, random);
+            session.write(update, 0, update.length);
+        }
+        byte[] data = session.toByteArray();
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        CaptureInStream in = new CaptureInStream(new ByteArrayInStream(data), file, w, h,
+                COLORMODEL.C24bit.name());
+        byte[] chunk = new byte[1500];
+        for (int n = 0; n < data.length; n += chunk.length) {
+            in.readBytes(chunk, 0, Math.min(chunk.length, data.length - n));
+        }
+        in.stopRecording();
+        return file.toByteArray();
+    }
+}
@@ -0,0 +1,392 @@
+package com.qihua.bVNC;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Synthesizes server to client FramebufferUpdate messages the way a VNC server with a
+ * 24 bit true color pixel format would send them, one per encoding. Every message starts
+ * over its zlib streams, so it can be decoded again and again from the start.
+ */
+class RfbStreams {
+    static final String[] NAMES = {
+            "tightFill", "tightPalette", "tightGradient", "tightJpeg", "zrle", "hextile", "rre", "corre", "copyRect"
+    };
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int rects;
+
+    /**
+     * @return a FramebufferUpdate message covering a w x h framebuffer with rects of the
+     * given stream, one of NAMES
+     */
+    static byte[] update(String name, int w, int h, Random random) throws IOException {
+        RfbStreams s = new RfbStreams();
+        switch (name) {
+            case "tightFill":
+                s.tightFill(w, h, random);
+                break;
+            case "tightPalette":
+                s.tightPalette(w, h, random);
+                break;
+            case "tightGradient":
+                s.tightGradient(w, h, random);
+                break;
+            case "tightJpeg":
+                s.tightJpeg(w, h, random);
+                break;
+            case "zrle":
+                s.zrle(w, h, random);
+                break;
+            case "hextile":
+                s.hextile(w, h, random);
+                break;
+            case "rre":
+                s.rre(w, h, random);
+                break;
+            case "corre":
+                s.corre(w, h, random);
+                break;
+            case "copyRect":
+                s.copyRect(w, h);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown stream " + name);
+        }
+        return s.message();
+    }
+
+    private byte[] message() {
+        byte[] body = out.toByteArray();
+        byte[] message = new byte[4 + body.length];
+        message[0] = 0; // FramebufferUpdate
+        message[2] = (byte) (rects >> 8);
+        message[3] = (byte) rects;
+        System.arraycopy(body, 0, message, 4, body.length);
+        return message;
+    }
+
+    private void rectHeader(int x, int y, int w, int h, int encoding) {
+        rects++;
+        u16(x);
+        u16(y);
+        u16(w);
+        u16(h);
+        u32(encoding);
+    }
+
+    private void u8(int v) {
+        out.write(v);
+    }
+
+    private void u16(int v) {
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private void u32(int v) {
+        u16(v >>> 16);
+        u16(v & 0xFFFF);
+    }
+
+    /**
+     * A 32 bit pixel, little endian as in the pixel format the app asks for.
+     */
+    private void pixel(int rgb) {
+        out.write(rgb);
+        out.write(rgb >> 8);
+        out.write(rgb >> 16);
+        out.write(0);
+    }
+
+    /**
+     * A Tight TPIXEL, which is red, green, blue for 24 bit depth.
+     */
+    private static void tpixel(ByteArrayOutputStream out, int rgb) {
+        out.write(rgb >> 16);
+        out.write(rgb >> 8);
+        out.write(rgb);
+    }
+
+    private void compactLen(int len) {
+        out.write(len & 0x7F | (len > 0x7F ? 0x80 : 0));
+        if (len > 0x7F) {
+            out.write((len >> 7) & 0x7F | (len > 0x3FFF ? 0x80 : 0));
+            if (len > 0x3FFF) {
+                out.write(len >> 14);
+            }
+        }
+    }
+
+    private void tightFill(int w, int h, Random random) {
+        for (int y = 0; y < h; y += 64) {
+            for (int x = 0; x < w; x += 128) {
+                rectHeader(x, y, Math.min(128, w - x), Math.min(64, h - y), RfbProto.EncodingTight);
+                u8(RfbProto.TightFill << 4);
+                tpixel(out, random.nextInt());
+            }
+        }
+    }
+
+    /**
+     * Alternates between two color rects, one bit per pixel, and 16 color rects on
+     * stream 1.
+     */
+    private void tightPalette(int w, int h, Random random) {
+        Deflater deflater = new Deflater();
+        boolean first = true;
+        int n = 0;
+        for (int y = 0; y < h; y += 64) {
+            for (int x = 0; x < w; x += 256) {
+                int rw = Math.min(256, w - x);
+                int rh = Math.min(64, h - y);
+                int colors = n++ % 2 == 0 ? 2 : 16;
+                rectHeader(x, y, rw, rh, RfbProto.EncodingTight);
+                u8((1 | RfbProto.TightExplicitFilter) << 4 | (first ? 1 << 1 : 0));
+                first = false;
+                u8(RfbProto.TightFilterPalette);
+                u8(colors - 1);
+                for (int i = 0; i < colors; i++) {
+                    tpixel(out, random.nextInt());
+                }
+
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                if (colors == 2) {
+                    for (int j = 0; j < rh * ((rw + 7) / 8); j++) {
+                        data.write(random.nextInt(4) == 0 ? random.nextInt(256) : 0);
+                    }
+                } else {
+                    for (int j = 0; j < rw * rh; j++) {
+                        data.write(random.nextInt(colors));
+                    }
+                }
+                tightData(deflater, data.toByteArray());
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * Smooth shades, sent through the gradient filter on stream 2.
+     */
+    private void tightGradient(int w, int h, Random random) {
+        Deflater deflater = new Deflater();
+        boolean first = true;
+        for (int y = 0; y < h; y += 64) {
+            for (int x = 0; x < w; x += 256) {
+                int rw = Math.min(256, w - x);
+                int rh = Math.min(64, h - y);
+                rectHeader(x, y, rw, rh, RfbProto.EncodingTight);
+                u8((2 | RfbProto.TightExplicitFilter) << 4 | (first ? 1 << 2 : 0));
+                first = false;
+                u8(RfbProto.TightFilterGradient);
+
+                // The filter leaves the difference to the predicted value, which is
+                // small for shades
+                byte[] data = new byte[rw * rh * 3];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) (random.nextInt(5) - 2);
+                }
+                tightData(deflater, data);
+            }
+        }
+        deflater.end();
+    }
+
+    private void tightData(Deflater deflater, byte[] data) {
+        if (data.length < RfbProto.TightMinToCompress) {
+            out.write(data, 0, data.length);
+            return;
+        }
+        byte[] compressed = deflate(deflater, data);
+        compactLen(compressed.length);
+        out.write(compressed, 0, compressed.length);
+    }
+
+    private void tightJpeg(int w, int h, Random random) throws IOException {
+        for (int y = 0; y < h; y += 256) {
+            for (int x = 0; x < w; x += 256) {
+                int rw = Math.min(256, w - x);
+                int rh = Math.min(256, h - y);
+                rectHeader(x, y, rw, rh, RfbProto.EncodingTight);
+                u8(RfbProto.TightJpeg << 4);
+                byte[] jpeg = jpeg(rw, rh, random);
+                compactLen(jpeg.length);
+                out.write(jpeg, 0, jpeg.length);
+            }
+        }
+    }
+
+    private static byte[] jpeg(int w, int h, Random random) throws IOException {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int base = random.nextInt();
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, base + x * 0x010203 + y * 0x030201 + random.nextInt(16));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Full width ZRLE rects of 64 rows, all from one zlib stream.
+     */
+    private void zrle(int w, int h, Random random) {
+        Deflater deflater = new Deflater();
+        for (int y = 0; y < h; y += 64) {
+            int rh = Math.min(64, h - y);
+            byte[] compressed = deflate(deflater, ZrleBenchmark.ZrleStreams.tiles(w, rh, random));
+            rectHeader(0, y, w, rh, RfbProto.EncodingZRLE);
+            u32(compressed.length);
+            out.write(compressed, 0, compressed.length);
+        }
+        deflater.end();
+    }
+
+    /**
+     * One framebuffer sized rect whose 16x16 tiles cycle through raw, background only,
+     * single color subrects and colored subrects.
+     */
+    private void hextile(int w, int h, Random random) {
+        rectHeader(0, 0, w, h, RfbProto.EncodingHextile);
+        int n = 0;
+        for (int ty = 0; ty < h; ty += 16) {
+            int th = Math.min(16, h - ty);
+            for (int tx = 0; tx < w; tx += 16) {
+                int tw = Math.min(16, w - tx);
+                switch (n++ % 4) {
+                    case 0:
+                        u8(RfbProto.HextileRaw);
+                        for (int i = 0; i < tw * th; i++) {
+                            pixel(random.nextInt());
+                        }
+                        break;
+                    case 1:
+                        u8(RfbProto.HextileBackgroundSpecified);
+                        pixel(random.nextInt());
+                        break;
+                    case 2: {
+                        u8(RfbProto.HextileBackgroundSpecified | RfbProto.HextileForegroundSpecified
+                                | RfbProto.HextileAnySubrects);
+                        pixel(random.nextInt());
+                        pixel(random.nextInt());
+                        int subrects = 1 + random.nextInt(8);
+                        u8(subrects);
+                        for (int i = 0; i < subrects; i++) {
+                            hextileSubrect(tw, th, random);
+                        }
+                        break;
+                    }
+                    default: {
+                        u8(RfbProto.HextileBackgroundSpecified | RfbProto.HextileAnySubrects
+                                | RfbProto.HextileSubrectsColoured);
+                        pixel(random.nextInt());
+                        int subrects = 1 + random.nextInt(8);
+                        u8(subrects);
+                        for (int i = 0; i < subrects; i++) {
+                            pixel(random.nextInt());
+                            hextileSubrect(tw, th, random);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void hextileSubrect(int tw, int th, Random random) {
+        int sx = random.nextInt(tw);
+        int sy = random.nextInt(th);
+        int sw = 1 + random.nextInt(tw - sx);
+        int sh = 1 + random.nextInt(th - sy);
+        u8(sx << 4 | sy);
+        u8((sw - 1) << 4 | (sh - 1));
+    }
+
+    /**
+     * Rects of 128x128, each with a background and 32 subrects.
+     */
+    private void rre(int w, int h, Random random) {
+        for (int y = 0; y < h; y += 128) {
+            for (int x = 0; x < w; x += 128) {
+                int rw = Math.min(128, w - x);
+                int rh = Math.min(128, h - y);
+                rectHeader(x, y, rw, rh, RfbProto.EncodingRRE);
+                int subrects = 32;
+                u32(subrects);
+                pixel(random.nextInt());
+                for (int i = 0; i < subrects; i++) {
+                    pixel(random.nextInt());
+                    int sx = random.nextInt(rw);
+                    int sy = random.nextInt(rh);
+                    int sw = 1 + random.nextInt(rw - sx);
+                    int sh = 1 + random.nextInt(rh - sy);
+                    u16(sx);
+                    u16(sy);
+                    u16(sw);
+                    u16(sh);
+                }
+            }
+        }
+    }
+
+    /**
+     * The same as rre, with the 8 bit subrect coordinates of CoRRE.
+     */
+    private void corre(int w, int h, Random random) {
+        for (int y = 0; y < h; y += 128) {
+            for (int x = 0; x < w; x += 128) {
+                int rw = Math.min(128, w - x);
+                int rh = Math.min(128, h - y);
+                rectHeader(x, y, rw, rh, RfbProto.EncodingCoRRE);
+                int subrects = 32;
+                u32(subrects);
+                pixel(random.nextInt());
+                for (int i = 0; i < subrects; i++) {
+                    pixel(random.nextInt());
+                    int sx = random.nextInt(rw);
+                    int sy = random.nextInt(rh);
+                    u8(sx);
+                    u8(sy);
+                    u8(1 + random.nextInt(rw - sx));
+                    u8(1 + random.nextInt(rh - sy));
+                }
+            }
+        }
+    }
+
+    /**
+     * Scrolls the framebuffer up by 32 rows, then moves a window sized rect sideways.
+     */
+    private void copyRect(int w, int h) {
+        rectHeader(0, 0, w, h - 32, RfbProto.EncodingCopyRect);
+        u16(0);
+        u16(32);
+        rectHeader(w / 4 + 16, h / 4, w / 2, h / 2, RfbProto.EncodingCopyRect);
+        u16(w / 4);
+        u16(h / 4);
+    }
+
+    /**
+     * Compresses data as a server does for one rect, flushed but with the stream left
+     * open for the next one.
+     */
+    static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[65536];
+        int n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+            out.write(buf, 0, n);
+        } while (n == buf.length);
+        return out.toByteArray();
+    }
+}
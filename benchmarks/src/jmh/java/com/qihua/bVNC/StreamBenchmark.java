@@ -0,0 +1,88 @@
+package com.qihua.bVNC;
+
+import com.tigervnc.rdr.AESInStream;
+import com.tigervnc.rdr.AESOutStream;
+import com.tigervnc.rdr.ByteArrayInStream;
+import com.tigervnc.rdr.RawOutStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Reads 4 MB of framebuffer like data through ZlibInStream and through AESInStream, in
+ * the chunk size of a Tight or ZRLE rect payload. The mb counter is the rate of plain
+ * bytes read.
+ * <p>
+ * Neither stream can start over, so each operation creates a new one, whose buffers show
+ * up in the allocation figures. They are small next to the data read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamBenchmark {
+    static final int SIZE = 4 * 1024 * 1024;
+    static final int CHUNK = 16 * 1024;
+
+    private final byte[] chunk = new byte[CHUNK];
+    private final byte[] key = new byte[16];
+    private byte[] compressed;
+    private byte[] encrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        byte[] plain = new byte[SIZE];
+        int pixel = 0;
+        for (int i = 0; i < SIZE; i += 4) {
+            // Runs of the same pixel, as in desktop content
+            if (random.nextInt(8) == 0) {
+                pixel = random.nextInt();
+            }
+            plain[i] = (byte) pixel;
+            plain[i + 1] = (byte) (pixel >> 8);
+            plain[i + 2] = (byte) (pixel >> 16);
+        }
+
+        Deflater deflater = new Deflater();
+        compressed = RfbStreams.deflate(deflater, plain);
+        deflater.end();
+
+        random.nextBytes(key);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AESOutStream aes = new AESOutStream(new RawOutStream(out), key);
+        aes.writeBytes(plain, 0, plain.length);
+        aes.flush();
+        encrypted = out.toByteArray();
+    }
+
+    @Benchmark
+    public int zlibInStream(Throughput throughput) throws Exception {
+        ZlibInStream in = new ZlibInStream();
+        in.setUnderlying(new MemInStream(compressed, 0, compressed.length), compressed.length);
+        for (int n = 0; n < SIZE; n += CHUNK) {
+            in.readBytes(chunk, 0, CHUNK);
+        }
+        throughput.add(SIZE);
+        return chunk[CHUNK - 1];
+    }
+
+    @Benchmark
+    public int aesInStream(Throughput throughput) throws Exception {
+        AESInStream in = new AESInStream(new ByteArrayInStream(encrypted), key);
+        for (int n = 0; n < SIZE; n += CHUNK) {
+            in.readBytes(chunk, 0, CHUNK);
+        }
+        throughput.add(SIZE);
+        return chunk[CHUNK - 1];
+    }
+}
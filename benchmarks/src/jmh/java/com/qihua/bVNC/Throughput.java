@@ -0,0 +1,26 @@
+package com.qihua.bVNC;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the bytes a benchmark consumed. JMH reports the field as a rate, which is MB/s
+ * for benchmarks with an output time unit of seconds.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    public double mb;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        mb = 0;
+    }
+
+    void add(int bytes) {
+        mb += bytes / (1024.0 * 1024.0);
+    }
+}
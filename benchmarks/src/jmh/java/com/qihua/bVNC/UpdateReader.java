@@ -0,0 +1,150 @@
+package com.qihua.bVNC;
+
+import com.tigervnc.rdr.ByteArrayInStream;
+import com.tigervnc.rdr.InStream;
+
+/**
+ * Reads server messages and hands the rects of FramebufferUpdates to the Decoder, the
+ * same way the protocol thread in RfbProto does. Other messages are skipped, and so are
+ * framebuffer size changes, rects outside the framebuffer are dropped by the Decoder.
+ */
+class UpdateReader {
+    private static final int FramebufferUpdate = 0,
+            Bell = 2,
+            ServerCutText = 3,
+            EndOfContinuousUpdates = 150,
+            ServerFence = 248;
+
+    private static final int EncodingPointerPos = -232,
+            EncodingLastRect = -224,
+            EncodingNewFBSize = -223,
+            EncodingExtendedDesktopSize = -308;
+
+    private static final byte[] skipBuffer = new byte[4096];
+
+    /**
+     * Decodes all messages left in the stream.
+     *
+     * @return the number of rects decoded
+     */
+    static int readUpdates(RfbProto rfb, ByteArrayInStream in, Decoder decoder) throws Exception {
+        int count = 0;
+        while (in.available() > 0) {
+            count += readMessage(rfb, in, decoder);
+        }
+        return count;
+    }
+
+    /**
+     * Reads one server message.
+     *
+     * @return the number of rects decoded
+     */
+    static int readMessage(RfbProto rfb, InStream in, Decoder decoder) throws Exception {
+        int msgType = in.readUnsignedByte();
+        switch (msgType) {
+            case FramebufferUpdate:
+                return readFramebufferUpdate(rfb, in, decoder);
+            case Bell:
+            case EndOfContinuousUpdates:
+                return 0;
+            case ServerCutText: {
+                skip(in, 3);
+                int len = in.readInt();
+                // Extended clipboard messages have a negative length
+                skip(in, Math.abs(len));
+                return 0;
+            }
+            case ServerFence: {
+                skip(in, 3);
+                in.readInt();
+                skip(in, in.readUnsignedByte());
+                return 0;
+            }
+            default:
+                throw new Exception("Unsupported server message " + msgType);
+        }
+    }
+
+    private static int readFramebufferUpdate(RfbProto rfb, InStream in, Decoder decoder) throws Exception {
+        in.readUnsignedByte();
+        int rects = in.readUnsignedShort();
+
+        int count = 0;
+        boolean exitforloop = false;
+        for (int i = 0; i < rects; i++) {
+            int x = in.readUnsignedShort();
+            int y = in.readUnsignedShort();
+            int w = in.readUnsignedShort();
+            int h = in.readUnsignedShort();
+            int encoding = in.readInt();
+
+            if (encoding != RfbProto.EncodingTight && encoding != RfbProto.EncodingTightZstd
+                    && encoding != RfbProto.EncodingZRLE) {
+                decoder.flush();
+            }
+
+            switch (encoding) {
+                case RfbProto.EncodingTight:
+                    decoder.handleTightRect(rfb, x, y, w, h, false);
+                    break;
+                case RfbProto.EncodingTightZstd:
+                    decoder.handleTightRect(rfb, x, y, w, h, true);
+                    break;
+                case RfbProto.EncodingCopyRect:
+                    decoder.handleCopyRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingRaw:
+                    decoder.handleRawRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingRRE:
+                    decoder.handleRRERect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingCoRRE:
+                    decoder.handleCoRRERect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingHextile:
+                    decoder.handleHextileRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingZRLE:
+                    decoder.handleZRLERect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingZlib:
+                    decoder.handleZlibRect(rfb, x, y, w, h);
+                    break;
+                case RfbProto.EncodingXCursor:
+                case RfbProto.EncodingRichCursor:
+                    decoder.handleCursorShapeUpdate(rfb, encoding, x, y, w, h);
+                    break;
+                case EncodingPointerPos:
+                case EncodingNewFBSize:
+                    break;
+                case EncodingExtendedDesktopSize: {
+                    int screens = in.readUnsignedByte();
+                    skip(in, 3 + screens * 16);
+                    break;
+                }
+                case EncodingLastRect:
+                    exitforloop = true;
+                    break;
+                default:
+                    throw new Exception("Unsupported rect encoding " + encoding);
+            }
+
+            if (exitforloop) {
+                break;
+            }
+            count++;
+        }
+        decoder.flush();
+        return count;
+    }
+
+    private static void skip(InStream in, int len) throws Exception {
+        while (len > 0) {
+            int n = Math.min(len, skipBuffer.length);
+            in.readBytes(skipBuffer, 0, n);
+            len -= n;
+        }
+    }
+}
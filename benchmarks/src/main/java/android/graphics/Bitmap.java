@@ -0,0 +1,108 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Android Bitmap, backed by an int[] of ARGB pixels whatever the config.
+ * The allocation size follows the config, as reconfigure() and inBitmap depend on it.
+ */
+public final class Bitmap {
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_4444, ARGB_8888
+    }
+
+    private int width;
+    private int height;
+    private Config config;
+    int[] pixels;
+    private final int allocationByteCount;
+    private boolean recycled;
+
+    private Bitmap(int width, int height, Config config) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        pixels = new int[width * height];
+        allocationByteCount = width * height * bytesPerPixel(config);
+    }
+
+    private static int bytesPerPixel(Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case ARGB_8888:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config);
+    }
+
+    public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+        Bitmap bitmap = new Bitmap(width, height, config);
+        System.arraycopy(colors, 0, bitmap.pixels, 0, width * height);
+        return bitmap;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public boolean isMutable() {
+        return true;
+    }
+
+    public int getAllocationByteCount() {
+        return allocationByteCount;
+    }
+
+    public void reconfigure(int width, int height, Config config) {
+        if (width * height * bytesPerPixel(config) > allocationByteCount) {
+            throw new IllegalArgumentException("Bitmap too small to reconfigure");
+        }
+        this.width = width;
+        this.height = height;
+        this.config = config;
+    }
+
+    public void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h) {
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(pixels, (y + j) * width + x, dst, offset + j * stride, w);
+        }
+    }
+
+    public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+        for (int j = 0; j < h; j++) {
+            System.arraycopy(src, offset + j * stride, pixels, (y + j) * width + x, w);
+        }
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void setPixel(int x, int y, int color) {
+        pixels[y * width + x] = color;
+    }
+
+    public void eraseColor(int color) {
+        java.util.Arrays.fill(pixels, 0, width * height, color);
+    }
+
+    public void recycle() {
+        recycled = true;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+}
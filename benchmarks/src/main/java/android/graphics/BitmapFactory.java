@@ -0,0 +1,61 @@
+package android.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Stand-in for the Android BitmapFactory, decodes with ImageIO. Honours inBitmap so the
+ * reuse done by JpegBitmapPool shows up in the allocation figures the same way.
+ */
+public class BitmapFactory {
+    public static class Options {
+        public Bitmap inBitmap;
+        public boolean inMutable;
+        public boolean inDither;
+        public boolean inPurgeable;
+        public boolean inScaled;
+        public boolean inJustDecodeBounds;
+        public byte[] inTempStorage;
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+        return decodeByteArray(data, offset, length, null);
+    }
+
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(data, offset, length));
+        } catch (IOException e) {
+            return null;
+        }
+        if (image == null) {
+            return null;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (opts != null) {
+            opts.outWidth = w;
+            opts.outHeight = h;
+            if (opts.inJustDecodeBounds) {
+                return null;
+            }
+        }
+
+        Bitmap bitmap;
+        if (opts != null && opts.inBitmap != null) {
+            bitmap = opts.inBitmap;
+            bitmap.reconfigure(w, h, opts.inPreferredConfig);
+        } else {
+            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        }
+        image.getRGB(0, 0, w, h, bitmap.pixels, 0, w);
+        return bitmap;
+    }
+}
@@ -0,0 +1,114 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Android Canvas, only good for filling rects into a bitmap.
+ */
+public class Canvas {
+    private Bitmap bitmap;
+
+    public Canvas() {
+    }
+
+    public Canvas(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public void setBitmap(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public int getWidth() {
+        return bitmap != null ? bitmap.getWidth() : 0;
+    }
+
+    public int getHeight() {
+        return bitmap != null ? bitmap.getHeight() : 0;
+    }
+
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+        if (bitmap == null) {
+            return;
+        }
+        int l = Math.max(0, (int) left);
+        int t = Math.max(0, (int) top);
+        int r = Math.min(bitmap.getWidth(), (int) right);
+        int b = Math.min(bitmap.getHeight(), (int) bottom);
+        for (int y = t; y < b; y++) {
+            java.util.Arrays.fill(bitmap.pixels, y * bitmap.getWidth() + l, y * bitmap.getWidth() + Math.max(l, r),
+                    paint.getColor());
+        }
+    }
+
+    public void drawRect(Rect r, Paint paint) {
+        drawRect(r.left, r.top, r.right, r.bottom, paint);
+    }
+
+    public void drawRect(RectF r, Paint paint) {
+        drawRect(r.left, r.top, r.right, r.bottom, paint);
+    }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+    }
+
+    public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
+    }
+
+    public void drawBitmap(int[] colors, int offset, int stride, int x, int y, int width, int height,
+                           boolean hasAlpha, Paint paint) {
+    }
+
+    public void drawBitmap(int[] colors, int offset, int stride, float x, float y, int width, int height,
+                           boolean hasAlpha, Paint paint) {
+    }
+
+    public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+    }
+
+    public void drawText(String text, float x, float y, Paint paint) {
+    }
+
+    public void drawColor(int color) {
+    }
+
+    public boolean getClipBounds(Rect bounds) {
+        if (bitmap == null) {
+            bounds.setEmpty();
+            return false;
+        }
+        bounds.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return true;
+    }
+
+    public Rect getClipBounds() {
+        Rect r = new Rect();
+        getClipBounds(r);
+        return r;
+    }
+
+    public boolean clipRect(Rect rect) {
+        return true;
+    }
+
+    public boolean clipRect(int left, int top, int right, int bottom) {
+        return true;
+    }
+
+    public int save() {
+        return 1;
+    }
+
+    public void restore() {
+    }
+
+    public void translate(float dx, float dy) {
+    }
+
+    public void scale(float sx, float sy) {
+    }
+
+    public void concat(Matrix matrix) {
+    }
+}
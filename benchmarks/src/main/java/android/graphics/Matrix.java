@@ -0,0 +1,63 @@
+package android.graphics;
+
+/**
+ * Stand-in for android.graphics.Matrix, only keeps scale and translation.
+ */
+public class Matrix {
+    private float scaleX = 1;
+    private float scaleY = 1;
+    private float transX;
+    private float transY;
+
+    public void reset() {
+        scaleX = scaleY = 1;
+        transX = transY = 0;
+    }
+
+    public void set(Matrix src) {
+        scaleX = src.scaleX;
+        scaleY = src.scaleY;
+        transX = src.transX;
+        transY = src.transY;
+    }
+
+    public void setScale(float sx, float sy) {
+        scaleX = sx;
+        scaleY = sy;
+        transX = transY = 0;
+    }
+
+    public boolean postScale(float sx, float sy) {
+        scaleX *= sx;
+        scaleY *= sy;
+        transX *= sx;
+        transY *= sy;
+        return true;
+    }
+
+    public void setTranslate(float dx, float dy) {
+        reset();
+        transX = dx;
+        transY = dy;
+    }
+
+    public boolean postTranslate(float dx, float dy) {
+        transX += dx;
+        transY += dy;
+        return true;
+    }
+
+    public boolean preTranslate(float dx, float dy) {
+        transX += dx * scaleX;
+        transY += dy * scaleY;
+        return true;
+    }
+
+    public boolean mapRect(RectF rect) {
+        rect.left = rect.left * scaleX + transX;
+        rect.right = rect.right * scaleX + transX;
+        rect.top = rect.top * scaleY + transY;
+        rect.bottom = rect.bottom * scaleY + transY;
+        return true;
+    }
+}
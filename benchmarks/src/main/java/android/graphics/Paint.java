@@ -0,0 +1,59 @@
+package android.graphics;
+
+/**
+ * Stand-in for android.graphics.Paint, keeps the color only.
+ */
+public class Paint {
+    public static final int ANTI_ALIAS_FLAG = 1;
+    public static final int FILTER_BITMAP_FLAG = 2;
+
+    public enum Style {
+        FILL, STROKE, FILL_AND_STROKE
+    }
+
+    private int color = 0xFF000000;
+    private Style style = Style.FILL;
+
+    public Paint() {
+    }
+
+    public Paint(int flags) {
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public void setColor(int color) {
+        this.color = color;
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    public void setStyle(Style style) {
+        this.style = style;
+    }
+
+    public void setFilterBitmap(boolean filter) {
+    }
+
+    public void setAntiAlias(boolean aa) {
+    }
+
+    public void setDither(boolean dither) {
+    }
+
+    public void setAlpha(int alpha) {
+    }
+
+    public void setTextSize(float textSize) {
+    }
+
+    public void setTypeface(Typeface typeface) {
+    }
+
+    public void setStrokeWidth(float width) {
+    }
+}
@@ -0,0 +1,119 @@
+package android.graphics;
+
+/**
+ * Stand-in for android.graphics.Rect with the same semantics.
+ */
+public final class Rect {
+    public int left;
+    public int top;
+    public int right;
+    public int bottom;
+
+    public Rect() {
+    }
+
+    public Rect(int left, int top, int right, int bottom) {
+        set(left, top, right, bottom);
+    }
+
+    public Rect(Rect r) {
+        set(r);
+    }
+
+    public void set(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void set(Rect src) {
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    public void setEmpty() {
+        left = top = right = bottom = 0;
+    }
+
+    public boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    public int width() {
+        return right - left;
+    }
+
+    public int height() {
+        return bottom - top;
+    }
+
+    public void offset(int dx, int dy) {
+        left += dx;
+        right += dx;
+        top += dy;
+        bottom += dy;
+    }
+
+    public boolean contains(int left, int top, int right, int bottom) {
+        return this.left < this.right && this.top < this.bottom
+                && this.left <= left && this.top <= top && this.right >= right && this.bottom >= bottom;
+    }
+
+    public boolean contains(Rect r) {
+        return contains(r.left, r.top, r.right, r.bottom);
+    }
+
+    public boolean intersects(int left, int top, int right, int bottom) {
+        return this.left < right && left < this.right && this.top < bottom && top < this.bottom;
+    }
+
+    public boolean intersect(int left, int top, int right, int bottom) {
+        if (!intersects(left, top, right, bottom)) {
+            return false;
+        }
+        this.left = Math.max(this.left, left);
+        this.top = Math.max(this.top, top);
+        this.right = Math.min(this.right, right);
+        this.bottom = Math.min(this.bottom, bottom);
+        return true;
+    }
+
+    public boolean intersect(Rect r) {
+        return intersect(r.left, r.top, r.right, r.bottom);
+    }
+
+    public boolean setIntersect(Rect a, Rect b) {
+        if (!intersects(a, b)) {
+            return false;
+        }
+        set(Math.max(a.left, b.left), Math.max(a.top, b.top), Math.min(a.right, b.right), Math.min(a.bottom, b.bottom));
+        return true;
+    }
+
+    public static boolean intersects(Rect a, Rect b) {
+        return a.intersects(b.left, b.top, b.right, b.bottom);
+    }
+
+    public void union(int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        if (isEmpty()) {
+            set(left, top, right, bottom);
+            return;
+        }
+        this.left = Math.min(this.left, left);
+        this.top = Math.min(this.top, top);
+        this.right = Math.max(this.right, right);
+        this.bottom = Math.max(this.bottom, bottom);
+    }
+
+    public void union(Rect r) {
+        union(r.left, r.top, r.right, r.bottom);
+    }
+
+    @Override
+    public String toString() {
+        return "Rect(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,45 @@
+package android.graphics;
+
+/**
+ * Stand-in for android.graphics.RectF.
+ */
+public class RectF {
+    public float left;
+    public float top;
+    public float right;
+    public float bottom;
+
+    public RectF() {
+    }
+
+    public RectF(float left, float top, float right, float bottom) {
+        set(left, top, right, bottom);
+    }
+
+    public void set(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public final float width() {
+        return right - left;
+    }
+
+    public final float height() {
+        return bottom - top;
+    }
+
+    public final boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    public void round(Rect dst) {
+        dst.set(Math.round(left), Math.round(top), Math.round(right), Math.round(bottom));
+    }
+
+    public void roundOut(Rect dst) {
+        dst.set((int) Math.floor(left), (int) Math.floor(top), (int) Math.ceil(right), (int) Math.ceil(bottom));
+    }
+}
@@ -0,0 +1,15 @@
+package android.graphics;
+
+/**
+ * Stand-in for android.graphics.Typeface.
+ */
+public class Typeface {
+    public static final Typeface DEFAULT = new Typeface();
+    public static final Typeface MONOSPACE = new Typeface();
+    public static final int NORMAL = 0;
+    public static final int BOLD = 1;
+
+    public static Typeface create(Typeface family, int style) {
+        return family;
+    }
+}
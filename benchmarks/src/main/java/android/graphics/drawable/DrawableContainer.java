@@ -0,0 +1,30 @@
+package android.graphics.drawable;
+
+import android.graphics.Canvas;
+
+/**
+ * Stand-in for android.graphics.drawable.DrawableContainer.
+ */
+public class DrawableContainer {
+    public void draw(Canvas canvas) {
+    }
+
+    public int getIntrinsicHeight() {
+        return -1;
+    }
+
+    public int getIntrinsicWidth() {
+        return -1;
+    }
+
+    public int getOpacity() {
+        return 0;
+    }
+
+    public boolean isStateful() {
+        return false;
+    }
+
+    public void invalidateSelf() {
+    }
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Build, reports the minimum SDK level of the app.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 26;
+    }
+
+    public static class VERSION_CODES {
+        public static final int O = 26;
+        public static final int P = 28;
+        public static final int Q = 29;
+        public static final int R = 30;
+        public static final int S = 31;
+    }
+}
@@ -0,0 +1,9 @@
+package android.widget;
+
+/**
+ * Stand-in for android.widget.ImageView.
+ */
+public class ImageView {
+    public void invalidate() {
+    }
+}
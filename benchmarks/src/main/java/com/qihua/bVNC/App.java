@@ -0,0 +1,14 @@
+package com.qihua.bVNC;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the application class.
+ */
+public class App {
+    private static final Context context = new Context();
+
+    public static Context getContext() {
+        return context;
+    }
+}
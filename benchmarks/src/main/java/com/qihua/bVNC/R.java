@@ -0,0 +1,15 @@
+package com.qihua.bVNC;
+
+/**
+ * Stand-in for the generated resources, with the ids the decoding classes refer to.
+ */
+public final class R {
+    public static final class string {
+        public static final int color_24_bit = 1;
+        public static final int color_256 = 2;
+        public static final int color_64 = 3;
+        public static final int color_8 = 4;
+        public static final int color_greyscale = 5;
+        public static final int color_black_and_white = 6;
+    }
+}
@@ -0,0 +1,69 @@
+package com.qihua.bVNC;
+
+import android.content.Context;
+
+import com.qihua.bVNC.input.RemotePointer;
+
+/**
+ * Stand-in for the view the decoder paints into. Redraw requests are only counted.
+ */
+public class RemoteCanvas {
+    private final Context context = new Context();
+    private final FpsCounter fpsCounter = new FpsCounter();
+    private final RemotePointer pointer = new RemotePointer();
+    private int width;
+    private int height;
+    long redraws;
+
+    public RemoteCanvas(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getVisibleDesktopWidth() {
+        return width;
+    }
+
+    public int getVisibleDesktopHeight() {
+        return height;
+    }
+
+    public void writeFullUpdateRequest(boolean incremental) {
+    }
+
+    public void reDraw(int x, int y, int w, int h) {
+        redraws++;
+    }
+
+    public void reDraw(float x, float y, float w, float h) {
+        reDraw((int) x, (int) y, (int) w, (int) h);
+    }
+
+    void reDrawCopied(int x, int y, int w, int h) {
+        redraws++;
+    }
+
+    public RemotePointer getPointer() {
+        return pointer;
+    }
+
+    public FpsCounter getFpsCounter() {
+        return fpsCounter;
+    }
+
+    public DecodeStats getDecodeStats() {
+        return null;
+    }
+}
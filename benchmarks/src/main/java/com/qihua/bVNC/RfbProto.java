@@ -0,0 +1,104 @@
+package com.qihua.bVNC;
+
+import com.tigervnc.rdr.InStream;
+import com.undatech.opaque.RfbConnectable;
+
+import java.io.IOException;
+
+/**
+ * Stand-in for the protocol, with the reads the decoder makes on it. Rect data comes
+ * from whatever InStream the benchmark sets, messages to the server are dropped.
+ */
+public class RfbProto extends RfbConnectable {
+    final static int
+            EncodingRaw = 0,
+            EncodingCopyRect = 1,
+            EncodingRRE = 2,
+            EncodingCoRRE = 4,
+            EncodingHextile = 5,
+            EncodingZlib = 6,
+            EncodingTight = 7,
+            EncodingZRLE = 16,
+            EncodingTightZstd = 26,
+            EncodingXCursor = -240,
+            EncodingRichCursor = -239;
+
+    final static int
+            HextileRaw = 1,
+            HextileBackgroundSpecified = 2,
+            HextileForegroundSpecified = 4,
+            HextileAnySubrects = 8,
+            HextileSubrectsColoured = 16;
+
+    final static int TightMinToCompress = 12;
+    final static int
+            TightExplicitFilter = 0x04,
+            TightFill = 0x08,
+            TightJpeg = 0x09,
+            TightMaxSubencoding = 0x09,
+            TightFilterCopy = 0x00,
+            TightFilterPalette = 0x01,
+            TightFilterGradient = 0x02;
+
+    InStream is;
+    int copyRectSrcX, copyRectSrcY;
+    private int framebufferWidth;
+    private int framebufferHeight;
+
+    public RfbProto(InStream is, int framebufferWidth, int framebufferHeight) {
+        this.is = is;
+        this.framebufferWidth = framebufferWidth;
+        this.framebufferHeight = framebufferHeight;
+    }
+
+    public void setInStream(InStream is) {
+        this.is = is;
+    }
+
+    @Override
+    public int framebufferWidth() {
+        return framebufferWidth;
+    }
+
+    @Override
+    public int framebufferHeight() {
+        return framebufferHeight;
+    }
+
+    @Override
+    public void writeSetPixelFormat(int bitsPerPixel, int depth, boolean bigEndian,
+                                    boolean trueColour, int redMax, int greenMax, int blueMax,
+                                    int redShift, int greenShift, int blueShift, boolean fGreyScale) {
+    }
+
+    @Override
+    public void writeFramebufferUpdateRequest(int x, int y, int w, int h, boolean incremental) {
+    }
+
+    void readCopyRect() throws IOException {
+        copyRectSrcX = is.readUnsignedShort();
+        copyRectSrcY = is.readUnsignedShort();
+    }
+
+    int readCompactLen() throws IOException {
+        int b = is.readUnsignedByte();
+        int len = b & 0x7F;
+        if ((b & 0x80) != 0) {
+            b = is.readUnsignedByte();
+            len |= (b & 0x7F) << 7;
+            if ((b & 0x80) != 0) {
+                b = is.readUnsignedByte();
+                len |= (b & 0xFF) << 14;
+            }
+        }
+        return len;
+    }
+
+    public void readFully(byte b[]) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte b[], int off, int len) throws IOException {
+        is.readBytes(b, off, len);
+    }
+}
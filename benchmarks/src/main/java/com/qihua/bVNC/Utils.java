@@ -0,0 +1,15 @@
+package com.qihua.bVNC;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the app utilities. Preferences are read from system properties named
+ * after the preference key, so a benchmark can switch parallel decoding on with
+ * -DparallelDecoding=true.
+ */
+public class Utils {
+    public static boolean querySharedPreferenceBoolean(Context context, String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+}
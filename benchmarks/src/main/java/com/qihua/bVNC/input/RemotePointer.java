@@ -0,0 +1,14 @@
+package com.qihua.bVNC.input;
+
+/**
+ * Stand-in for the pointer, which stays at the origin.
+ */
+public class RemotePointer {
+    public int getX() {
+        return 0;
+    }
+
+    public int getY() {
+        return 0;
+    }
+}
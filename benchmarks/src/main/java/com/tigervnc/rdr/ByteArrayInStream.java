@@ -0,0 +1,34 @@
+package com.tigervnc.rdr;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads from a byte array that is already in memory, so a benchmark can decode the same
+ * stream over and over without the cost of a socket or a copy. rewind() starts over.
+ */
+public class ByteArrayInStream extends InStream {
+    private final int start;
+
+    public ByteArrayInStream(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public ByteArrayInStream(byte[] data, int offset, int length) {
+        b = data;
+        ptr = start = offset;
+        end = offset + length;
+    }
+
+    public void rewind() {
+        ptr = start;
+    }
+
+    public int available() {
+        return end - ptr;
+    }
+
+    protected int overrun(int itemSize, int nItems, boolean wait) throws IOException {
+        throw new EOFException("ByteArrayInStream: end of data");
+    }
+}
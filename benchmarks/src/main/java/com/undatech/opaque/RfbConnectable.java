@@ -0,0 +1,16 @@
+package com.undatech.opaque;
+
+/**
+ * Stand-in for the connection interface, reduced to what the decoding classes use.
+ */
+public abstract class RfbConnectable {
+    public abstract int framebufferWidth();
+
+    public abstract int framebufferHeight();
+
+    public abstract void writeSetPixelFormat(int bitsPerPixel, int depth, boolean bigEndian,
+                                             boolean trueColour, int redMax, int greenMax, int blueMax,
+                                             int redShift, int greenShift, int blueShift, boolean fGreyScale);
+
+    public abstract void writeFramebufferUpdateRequest(int x, int y, int w, int h, boolean incremental);
+}
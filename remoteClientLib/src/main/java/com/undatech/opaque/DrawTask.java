@@ -4,18 +4,32 @@ import android.graphics.Bitmap;
 import android.graphics.Rect;
 
 public class DrawTask {
-    private Rect dirtyRect;
+    private final Rect dirtyRect = new Rect();
     private boolean count;
     private long inTimeMs;
     private String debugMsg;
+    private boolean local;
+
+    public DrawTask() {
+    }
+
     public DrawTask(int x, int y, int width, int height) {
         this(x, y, width, height, false);
     }
 
     public DrawTask(int x, int y, int width, int height, boolean count) {
-        this.dirtyRect = new Rect(x, y, x + width, y + height);
+        set(x, y, width, height, count);
+    }
+
+    /**
+     * Reinitializes a recycled task, so the draw path does not need to allocate one per update.
+     */
+    public void set(int x, int y, int width, int height, boolean count) {
+        dirtyRect.set(x, y, x + width, y + height);
 
         this.count = count;
+        this.debugMsg = null;
+        this.local = false;
         inTimeMs = System.currentTimeMillis();
     }
 
@@ -27,6 +41,18 @@ public class DrawTask {
         return debugMsg;
     }
 
+    /**
+     * Marks the task as redrawing something that changed on the client alone, like the
+     * local cursor, rather than an update of the remote framebuffer.
+     */
+    public void setLocal(boolean local) {
+        this.local = local;
+    }
+
+    public boolean isLocal() {
+        return local;
+    }
+
     public long getInTimeMs() {
         return inTimeMs;
     }
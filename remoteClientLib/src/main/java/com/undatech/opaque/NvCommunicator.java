@@ -188,10 +188,7 @@ public class NvCommunicator extends RfbConnectable implements NvConnectionListen
                         return;
                     }
 
-                    DrawTask drawTask = new DrawTask(x, y, width, height, true);
-                    drawTask.setDebugMsg(debugMsg);
-
-                    viewable.reDraw(drawTask);
+                    viewable.reDraw(x, y, width, height, true, debugMsg);
                 }, handler);
             });
 
@@ -330,6 +327,11 @@ public class NvCommunicator extends RfbConnectable implements NvConnectionListen
     @Override
     public void writePointerEvent(int x, int y, int metaState, int pointerMask, boolean relative) {
         this.metaState = metaState;
+        if (relative) {
+            traceInput();
+        } else {
+            traceInput(x, y);
+        }
         if ((pointerMask & RemotePointer.POINTER_DOWN_MASK) != 0) {
             translateModifierKeys(true);
         }
@@ -412,6 +414,7 @@ public class NvCommunicator extends RfbConnectable implements NvConnectionListen
                 , down ? KeyboardPacket.KEY_DOWN : KeyboardPacket.KEY_UP
                 , (byte)remoteKeyboardState.getRemoteMetaState()
                 , (byte)0);
+        traceInput();
     }
 
     // Returns true if the key stroke was consumed
@@ -148,6 +148,7 @@ public class RdpCommunicator extends RfbConnectable implements RdpKeyboardMapper
 //        }
 
         LibFreeRDP.sendCursorEvent(session.getInstance(), x, y, pointerMask);
+        traceInput(x, y);
 
 //        if ((pointerMask & RemotePointer.POINTER_DOWN_MASK) == 0) {
 //            sendModifierKeys(false);
@@ -258,6 +259,7 @@ public class RdpCommunicator extends RfbConnectable implements RdpKeyboardMapper
 
 
         LibFreeRDP.sendKeyEvent(session.getInstance(), virtualKeyCode, down);
+        traceInput();
 
         // will crash if too fast key sending, possibly FreeRDP bugs
         SystemClock.sleep(20);
@@ -282,6 +284,7 @@ public class RdpCommunicator extends RfbConnectable implements RdpKeyboardMapper
 //        GeneralUtils.debugLog(this.debugLogging, TAG, "processUnicodeKey: " +
 //                "Sending unicode key: " + unicodeKey + ", down: " + down + ", metaState: " + metaState);
         LibFreeRDP.sendUnicodeKeyEvent(session.getInstance(), unicodeKey, down);
+        traceInput();
 
         // will crash if too fast key sending, possibly FreeRDP bugs
         SystemClock.sleep(20);
@@ -562,15 +565,23 @@ public class RdpCommunicator extends RfbConnectable implements RdpKeyboardMapper
             return;
         }
 
-        DrawTask drawTask = new DrawTask(x, y, width, height, true);
+        // Only copy the damaged region, clamped to the bitmap in case the update
+        // races with a resize of the remote desktop.
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + width, bitmap.getWidth());
+        int bottom = Math.min(y + height, bitmap.getHeight());
+        if (right <= left || bottom <= top) {
+            return;
+        }
 
         LibFreeRDP.updateGraphics(session.getInstance(), bitmap
-                , 0
-                , 0
-                , bitmap.getWidth()
-                , bitmap.getHeight());
+                , left
+                , top
+                , right - left
+                , bottom - top);
 
-        viewable.reDraw(drawTask);
+        viewable.reDraw(left, top, right - left, bottom - top, true, null);
     }
 
     @Override
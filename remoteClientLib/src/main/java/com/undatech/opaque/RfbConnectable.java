@@ -24,6 +24,7 @@ import android.os.Handler;
 import android.os.Message;
 
 import com.undatech.opaque.input.RemoteKeyboardState;
+import com.undatech.opaque.util.InputLatencyTracer;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -35,6 +36,8 @@ public abstract class RfbConnectable {
     protected boolean debugLogging = false;
     protected int metaState = 0;
     protected Handler handler = null;
+    // Null unless input latency is being measured
+    protected InputLatencyTracer latencyTracer = null;
 
     public RfbConnectable(boolean debugLogging, Handler handler) {
         this.handler = handler;
@@ -50,6 +53,28 @@ public abstract class RfbConnectable {
         this.handler = handler;
     }
 
+    public void setLatencyTracer(InputLatencyTracer latencyTracer) {
+        this.latencyTracer = latencyTracer;
+    }
+
+    /**
+     * Stamps a pointer event at the given position as sent, for the latency tracer.
+     */
+    protected void traceInput(int x, int y) {
+        if (latencyTracer != null) {
+            latencyTracer.inputSent(x, y);
+        }
+    }
+
+    /**
+     * Stamps a key event or another event without a position as sent.
+     */
+    protected void traceInput() {
+        if (latencyTracer != null) {
+            latencyTracer.inputSent();
+        }
+    }
+
     public abstract int framebufferWidth();
 
     public abstract int framebufferHeight();
@@ -15,7 +15,7 @@ public interface Viewable {
 
     void reDraw(int x, int y, int width, int height);
 
-    void reDraw(DrawTask task);
+    void reDraw(int x, int y, int width, int height, boolean count, String debugMsg);
 
     void setMousePointerPosition(int x, int y);
 
@@ -0,0 +1,141 @@
+package com.undatech.opaque.util;
+
+import java.util.Locale;
+
+/**
+ * Measures the time from sending an input event to the server until the screen shows
+ * its effect.
+ * <p>
+ * Each pointer and key event sent is stamped. The first damage from the server that
+ * arrives after it and touches the region around the pointer is taken as its effect.
+ * Redraws of the local cursor and repaints with the same content don't count. Key events have no
+ * position, and the focused widget is not known to the client, so any damage counts
+ * for them. The latency is recorded once the frame that includes that damage has been
+ * presented. Events that nothing follows within a second, e.g. pointer moves drawn by
+ * the local cursor alone, are counted as unmatched.
+ */
+public class InputLatencyTracer {
+    private static final int MAX_PENDING = 64;
+    private static final long TIMEOUT_NS = 1000000000L;
+    // Damage this close to the pointer counts as caused by it, covers the cursor and
+    // the usual hover effects
+    private static final int POINTER_RADIUS = 64;
+    private static final int NO_POSITION = Integer.MIN_VALUE;
+
+    private final long[] sentNs = new long[MAX_PENDING];
+    private final int[] xs = new int[MAX_PENDING];
+    private final int[] ys = new int[MAX_PENDING];
+    private final boolean[] damaged = new boolean[MAX_PENDING];
+    private int pending;
+
+    private final Histogram latencyNs = new Histogram();
+    private long unmatched;
+
+    /**
+     * Stamps a pointer event at the given framebuffer position.
+     */
+    public void inputSent(int x, int y) {
+        add(x, y);
+    }
+
+    /**
+     * Stamps an event that is not tied to a position, like a key or a relative pointer move.
+     */
+    public void inputSent() {
+        add(NO_POSITION, NO_POSITION);
+    }
+
+    private synchronized void add(int x, int y) {
+        if (pending == MAX_PENDING) {
+            // Nothing has drawn for a while, the oldest is as good as unmatched
+            remove(0);
+            unmatched++;
+        }
+        sentNs[pending] = System.nanoTime();
+        xs[pending] = x;
+        ys[pending] = y;
+        damaged[pending] = false;
+        pending++;
+    }
+
+    /**
+     * Called with the damage that goes into the frame being drawn.
+     */
+    public synchronized void damaged(int left, int top, int right, int bottom) {
+        for (int i = 0; i < pending; i++) {
+            if (damaged[i]) {
+                continue;
+            }
+            if (xs[i] == NO_POSITION || (xs[i] + POINTER_RADIUS > left && xs[i] - POINTER_RADIUS < right
+                    && ys[i] + POINTER_RADIUS > top && ys[i] - POINTER_RADIUS < bottom)) {
+                damaged[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Called once the frame is on its way to the display, records the latency of the
+     * events whose damage it included.
+     */
+    public synchronized void framePresented() {
+        long now = System.nanoTime();
+        int kept = 0;
+        for (int i = 0; i < pending; i++) {
+            if (damaged[i]) {
+                latencyNs.record(now - sentNs[i]);
+            } else if (now - sentNs[i] > TIMEOUT_NS) {
+                unmatched++;
+            } else {
+                sentNs[kept] = sentNs[i];
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                damaged[kept] = false;
+                kept++;
+            }
+        }
+        pending = kept;
+    }
+
+    private void remove(int index) {
+        int n = pending - index - 1;
+        System.arraycopy(sentNs, index + 1, sentNs, index, n);
+        System.arraycopy(xs, index + 1, xs, index, n);
+        System.arraycopy(ys, index + 1, ys, index, n);
+        System.arraycopy(damaged, index + 1, damaged, index, n);
+        pending--;
+    }
+
+    public synchronized void reset() {
+        pending = 0;
+        unmatched = 0;
+        latencyNs.reset();
+    }
+
+    public Histogram getLatencyNs() {
+        return latencyNs;
+    }
+
+    public synchronized long getUnmatched() {
+        return unmatched;
+    }
+
+    /**
+     * One line for the debug info overlay, with the median and 99th percentile in ms.
+     */
+    public String getSummary() {
+        return String.format(Locale.US, "INPUT LATENCY: %.1f/%.1f MS, N:%d, UNMATCHED:%d",
+                latencyNs.getPercentile(50) / 1e6, latencyNs.getPercentile(99) / 1e6,
+                latencyNs.getCount(), getUnmatched());
+    }
+
+    /**
+     * The latency distribution, in ms.
+     */
+    public String dump() {
+        return String.format(Locale.US,
+                "Input latency in ms: n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f unmatched=%d",
+                latencyNs.getCount(), latencyNs.getMean() / 1e6, latencyNs.getPercentile(50) / 1e6,
+                latencyNs.getPercentile(90) / 1e6, latencyNs.getPercentile(99) / 1e6,
+                latencyNs.getMax() / 1e6, getUnmatched());
+    }
+}